@@ -5,25 +5,34 @@ import com.amplitude.security.MD5;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.FormEncodingBuilder;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.location.Location;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
@@ -35,12 +44,38 @@ public class AmplitudeClient {
     public static final String START_SESSION_EVENT = "session_start";
     public static final String END_SESSION_EVENT = "session_end";
     public static final String REVENUE_EVENT = "revenue_amount";
+    public static final String IDENTIFY_EVENT = "$identify";
     public static final String DEVICE_ID_KEY = "device_id";
 
-    protected static AmplitudeClient instance = new AmplitudeClient();
+    // What to do when a new event arrives and eventMaxCount events are already stored
+    public static final int OVERFLOW_POLICY_DROP_OLDEST = 0;
+    public static final int OVERFLOW_POLICY_DROP_NEWEST = 1;
+    public static final int OVERFLOW_POLICY_DROP_LOWEST_PRIORITY = 2;
+
+    // Counts a batch without keeping its events, for streaming uploads
+    private static class BatchCounter implements EventStore.EventVisitor {
+        int eventCount = 0;
+
+        @Override
+        public void visitEvent(long eventId, String event) {
+            eventCount++;
+        }
+    }
+
+    // Created on first use, along with its threads
+    protected static volatile AmplitudeClient instance;
 
     public static AmplitudeClient getInstance() {
-        return instance;
+        AmplitudeClient client = instance;
+        if (client == null) {
+            synchronized (AmplitudeClient.class) {
+                if (instance == null) {
+                    instance = new AmplitudeClient();
+                }
+                client = instance;
+            }
+        }
+        return client;
     }
 
     protected Context context;
@@ -54,83 +89,215 @@ public class AmplitudeClient {
     private boolean offline = false;
 
     private DeviceInfo deviceInfo;
+    // Built on first use, see getDeviceContextTemplate
+    private final EventEncoder eventEncoder = new EventEncoder();
+    private volatile DeviceContextTemplate deviceContextTemplate;
+    private EventStore eventStore;
+    private OkHttpClient httpClient;
 
+    // Replaced, never modified, on the log thread; events embed its cached serialization
     /* VisibleForTesting */
-    JSONObject userProperties;
+    volatile UserProperties userProperties;
+    // Changes not yet sent as identify events, only used on the log thread
+    private boolean userPropertiesOnChange = false;
+    private boolean pendingUserPropertiesClear = false;
+    private UserProperties pendingUserProperties;
 
     private long sessionId = -1;
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
+    private int overflowPolicy = OVERFLOW_POLICY_DROP_OLDEST;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
+    private int eventIngestBatchSize = Constants.EVENT_INGEST_BATCH_SIZE;
+    private long eventIngestMaxLatencyMillis = Constants.EVENT_INGEST_MAX_LATENCY_MILLIS;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
     private boolean backoffUpload = false;
     private int backoffUploadBatchSize = eventUploadMaxBatchSize;
     private boolean usingForegroundTracking = false;
     private boolean trackingSessionEvents = false;
-    private boolean inForeground = false;
+    private volatile boolean inForeground = false;
+    private boolean persistentDatabaseConnection = true;
+    private boolean eventStorageCompression = false;
+    private boolean streamingUpload = false;
+    private boolean gzipUpload = false;
+    private int uploadConcurrency = Constants.EVENT_UPLOAD_CONCURRENCY;
+    private boolean adaptiveBatchSize = false;
+    private long eventUploadMaxBatchBytes = Constants.EVENT_UPLOAD_MAX_BATCH_BYTES;
+    private boolean uploadRetryBackoff = false;
+    private boolean connectivityAwareUpload = false;
+    private boolean unmeteredUploadOnly = false;
+    private int meteredUploadBacklog = Constants.METERED_UPLOAD_BACKLOG;
+    private boolean flushOnBackground = false;
+    private long backgroundFlushTimeBudgetMillis = Constants.BACKGROUND_FLUSH_TIME_BUDGET_MILLIS;
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
-    private AtomicBoolean uploadingCurrently = new AtomicBoolean(false);
+    // Upload batches in flight, only accessed from logThread
+    private final UploadWindow uploadWindow = new UploadWindow();
+    // Only accessed from logThread, null unless adaptiveBatchSize is set
+    private BatchSizeController batchSizeController;
+    /* VisibleForTesting */
+    final RetryScheduler retryScheduler = new RetryScheduler(
+            Constants.UPLOAD_RETRY_BASE_DELAY_MILLIS, Constants.UPLOAD_RETRY_MAX_DELAY_MILLIS,
+            new Random());
+    private final Runnable retryUpload = new Runnable() {
+        @Override
+        public void run() {
+            updateServer();
+        }
+    };
+    private final Runnable backgroundFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushInBackground();
+        }
+    };
+    // Set when the background flush waits for a batch in flight, only used on logThread
+    private boolean backgroundFlushPending = false;
+    // Moving average of upload throughput, 0 until measured. Only accessed from logThread
+    /* VisibleForTesting */
+    double uploadEventsPerMilli = 0;
+    private volatile ConnectivityMonitor connectivityMonitor;
+    // When the periodic upload started waiting for the radio to wake up, only accessed
+    // from logThread
+    private long radioWaitStartMillis = -1;
+    private final Runnable radioActiveUpload = new Runnable() {
+        @Override
+        public void run() {
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateServer();
+                }
+            });
+        }
+    };
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // Released once the work initialize queued on logThread is done
+    private final CountDownLatch initializationLatch = new CountDownLatch(1);
+
+    // Loaded from SharedPreferences on first use, see getSessionState
+    private SessionState sessionState;
+    private AtomicBoolean sessionStatePersistScheduled = new AtomicBoolean(false);
+
+    // Events serialized on logThread but not yet written to the database, with their priority
+    private final List<Pair<String, Integer>> pendingEvents =
+            new ArrayList<Pair<String, Integer>>();
+    private final Map<String, Integer> eventPriorities = new HashMap<String, Integer>();
 
     // Let test classes have access to these properties.
     Throwable lastError;
     String url = Constants.EVENT_LOG_URL;
     WorkerThread logThread = new WorkerThread("logThread");
     WorkerThread httpThread = new WorkerThread("httpThread");
+    // httpThread followed by the extra threads used for concurrent uploads
+    final List<WorkerThread> httpThreads = new ArrayList<WorkerThread>();
 
+    // The threads start on first use, see WorkerThread
     public AmplitudeClient() {
-        logThread.start();
-        httpThread.start();
+        httpThreads.add(httpThread);
     }
 
     public AmplitudeClient initialize(Context context, String apiKey) {
         return initialize(context, apiKey, null);
     }
 
-    public synchronized AmplitudeClient initialize(Context context, String apiKey, String userId) {
+    /**
+     * Returns without touching the disk. Upgrading old preferences, loading the stored user
+     * id and opt out setting and preparing the database happen on a background thread, and
+     * calls made in the meantime are queued behind that work. Use awaitInitialization to
+     * wait for it.
+     */
+    public synchronized AmplitudeClient initialize(Context context, String apiKey,
+            final String userId) {
         if (context == null) {
             Log.e(TAG, "Argument context cannot be null in initialize()");
-            return instance;
+            return this;
         }
-
-        AmplitudeClient.upgradePrefs(context);
-        AmplitudeClient.upgradeDeviceIdToDB(context);
-
         if (TextUtils.isEmpty(apiKey)) {
             Log.e(TAG, "Argument apiKey cannot be null or blank in initialize()");
-            return instance;
+            return this;
         }
         if (!initialized) {
             this.context = context.getApplicationContext();
             this.apiKey = apiKey;
-            initializeDeviceInfo();
-            SharedPreferences preferences = context.getSharedPreferences(
-                    getSharedPreferencesName(), Context.MODE_PRIVATE);
             if (userId != null) {
                 this.userId = userId;
-                preferences.edit().putString(Constants.PREFKEY_USER_ID, userId).commit();
-            } else {
-                this.userId = preferences.getString(Constants.PREFKEY_USER_ID, null);
             }
-            this.optOut = preferences.getBoolean(Constants.PREFKEY_OPT_OUT, false);
+            // posted first, so it runs before anything queued on logThread after this
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    loadStoredState(userId);
+                }
+            });
+            initializeDeviceInfo();
+            registerComponentCallbacks();
+            updateConnectivityMonitor();
             initialized = true;
         }
 
-        return instance;
+        return this;
+    }
+
+    // Always call this from logThread
+    private void loadStoredState(String userId) {
+        AmplitudeClient.upgradePrefs(context);
+        AmplitudeClient.upgradeDeviceIdToDB(context);
+
+        SharedPreferences preferences = context.getSharedPreferences(
+                getSharedPreferencesName(), Context.MODE_PRIVATE);
+        if (userId != null) {
+            // this.userId, in case setUserId changed it since
+            preferences.edit().putString(Constants.PREFKEY_USER_ID, this.userId).commit();
+        } else {
+            // also picks up a setUserId made before this ran, which commits right away
+            this.userId = preferences.getString(Constants.PREFKEY_USER_ID, null);
+        }
+        this.optOut = preferences.getBoolean(Constants.PREFKEY_OPT_OUT, false);
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        dbHelper.setPersistentConnection(persistentDatabaseConnection);
+        dbHelper.setEventCompression(eventStorageCompression);
+        getEventStore().setEventCapacity(eventMaxCount, overflowPolicy);
+    }
+
+    /**
+     * Block until the background work started by initialize is done, after which
+     * getUserId and getDeviceId return their stored values. Returns right away, without
+     * waiting, when called on the SDK's own thread.
+     * @return false if initialization didn't finish within timeoutMillis
+     */
+    public boolean awaitInitialization(long timeoutMillis) {
+        if (Thread.currentThread() == logThread) {
+            return initializationLatch.getCount() == 0;
+        }
+        try {
+            return initializationLatch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     public AmplitudeClient enableForegroundTracking(Application app) {
         if (usingForegroundTracking) {
-            return instance;
+            return this;
         }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            app.registerActivityLifecycleCallbacks(new AmplitudeCallbacks(instance));
+            app.registerActivityLifecycleCallbacks(new AmplitudeCallbacks(this));
         }
 
-        return instance;
+        return this;
+    }
+
+    private void registerComponentCallbacks() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH
+                && context instanceof Application) {
+            ((Application) context).registerComponentCallbacks(
+                    new AmplitudeComponentCallbacks(this));
+        }
     }
 
     private void initializeDeviceInfo() {
@@ -141,18 +308,19 @@ public class AmplitudeClient {
             public void run() {
                 deviceId = initializeDeviceId();
                 deviceInfo.prefetch();
+                initializationLatch.countDown();
             }
         });
     }
 
     public AmplitudeClient enableNewDeviceIdPerInstall(boolean newDeviceIdPerInstall) {
         this.newDeviceIdPerInstall = newDeviceIdPerInstall;
-        return instance;
+        return this;
     }
 
     public AmplitudeClient useAdvertisingIdForDeviceId() {
         this.useAdvertisingIdForDeviceId = true;
-        return instance;
+        return this;
     }
 
     public AmplitudeClient enableLocationListening() {
@@ -161,7 +329,7 @@ public class AmplitudeClient {
                     "Must initialize before acting on location listening.");
         }
         deviceInfo.setLocationListening(true);
-        return instance;
+        return this;
     }
 
     public AmplitudeClient disableLocationListening() {
@@ -170,38 +338,84 @@ public class AmplitudeClient {
                     "Must initialize before acting on location listening.");
         }
         deviceInfo.setLocationListening(false);
-        return instance;
+        return this;
     }
 
     public AmplitudeClient setEventUploadThreshold(int eventUploadThreshold) {
         this.eventUploadThreshold = eventUploadThreshold;
-        return instance;
+        return this;
     }
 
     public AmplitudeClient setEventUploadMaxBatchSize(int eventUploadMaxBatchSize) {
         this.eventUploadMaxBatchSize = eventUploadMaxBatchSize;
         this.backoffUploadBatchSize = eventUploadMaxBatchSize;
-        return instance;
+        return this;
     }
 
     public AmplitudeClient setEventMaxCount(int eventMaxCount) {
         this.eventMaxCount = eventMaxCount;
-        return instance;
+        if (context != null) {
+            getEventStore().setEventCapacity(eventMaxCount, overflowPolicy);
+        }
+        return this;
+    }
+
+    /**
+     * Choose which events are dropped once eventMaxCount events are stored: the oldest
+     * (the default), the newly logged one, or the lowest priority ones set with
+     * setEventPriority.
+     */
+    public AmplitudeClient setEventOverflowPolicy(int overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        if (context != null) {
+            getEventStore().setEventCapacity(eventMaxCount, overflowPolicy);
+        }
+        return this;
+    }
+
+    /**
+     * Set the priority used by OVERFLOW_POLICY_DROP_LOWEST_PRIORITY for events of the given
+     * type. Events default to priority 0; higher priority events are dropped last.
+     */
+    public AmplitudeClient setEventPriority(String eventType, int priority) {
+        synchronized (eventPriorities) {
+            eventPriorities.put(eventType, priority);
+        }
+        return this;
     }
 
     public AmplitudeClient setEventUploadPeriodMillis(int eventUploadPeriodMillis) {
         this.eventUploadPeriodMillis = eventUploadPeriodMillis;
-        return instance;
+        return this;
+    }
+
+    /**
+     * Group commit: buffer up to eventIngestBatchSize events on the log thread and write
+     * them to the database in a single transaction. A value of 1 (the default) writes every
+     * event as soon as it is logged.
+     */
+    public AmplitudeClient setEventIngestBatchSize(int eventIngestBatchSize) {
+        this.eventIngestBatchSize = Math.max(1, eventIngestBatchSize);
+        return this;
+    }
+
+    /**
+     * Maximum time a buffered event waits before its batch is committed. With the default
+     * of 0 a batch holds every event that was queued on the log thread since its last wakeup.
+     */
+    public AmplitudeClient setEventIngestMaxLatencyMillis(long eventIngestMaxLatencyMillis) {
+        this.eventIngestMaxLatencyMillis = Math.max(0, eventIngestMaxLatencyMillis);
+        return this;
     }
 
     public AmplitudeClient setMinTimeBetweenSessionsMillis(long minTimeBetweenSessionsMillis) {
         this.minTimeBetweenSessionsMillis = minTimeBetweenSessionsMillis;
-        return instance;
+        return this;
     }
 
     public AmplitudeClient setSessionTimeoutMillis(long sessionTimeoutMillis) {
         this.sessionTimeoutMillis = sessionTimeoutMillis;
-        return instance;
+        return this;
     }
 
     public AmplitudeClient setOptOut(boolean optOut) {
@@ -210,7 +424,7 @@ public class AmplitudeClient {
         SharedPreferences preferences = context.getSharedPreferences(
                 getSharedPreferencesName(), Context.MODE_PRIVATE);
         preferences.edit().putBoolean(Constants.PREFKEY_OPT_OUT, optOut).commit();
-        return instance;
+        return this;
     }
 
     public AmplitudeClient setOffline(boolean offline) {
@@ -221,12 +435,322 @@ public class AmplitudeClient {
             uploadEvents();
         }
 
-        return instance;
+        return this;
+    }
+
+    /**
+     * Keep a single SQLite connection open for the life of the client (the default) instead
+     * of opening and closing the database around every read and write. The connection
+     * uses write-ahead logging and is released when the system asks the app to trim memory.
+     */
+    public AmplitudeClient setPersistentDatabaseConnection(boolean persistentDatabaseConnection) {
+        this.persistentDatabaseConnection = persistentDatabaseConnection;
+        if (context != null) {
+            DatabaseHelper.getDatabaseHelper(context)
+                    .setPersistentConnection(persistentDatabaseConnection);
+        }
+        return this;
+    }
+
+    /**
+     * Store new events in the database deflated with a dictionary of the common event keys
+     * instead of as JSON text. Typically shrinks stored events several times over, which
+     * matters for users who stay offline long enough to fill the queue. Events already
+     * stored stay readable either way. Requires API level 11.
+     */
+    public AmplitudeClient setEventStorageCompression(boolean eventStorageCompression) {
+        this.eventStorageCompression = eventStorageCompression;
+        if (context != null) {
+            DatabaseHelper.getDatabaseHelper(context).setEventCompression(eventStorageCompression);
+        }
+        return this;
+    }
+
+    /**
+     * Stream each upload batch from the event store into the HTTP request as it is sent,
+     * computing the form encoding and checksum on the fly, instead of building the whole
+     * batch in memory first. Keeps peak memory per upload small enough to raise
+     * setEventUploadMaxBatchSize on low-end devices. The request uses chunked transfer
+     * encoding.
+     */
+    public AmplitudeClient setStreamingUpload(boolean streamingUpload) {
+        this.streamingUpload = streamingUpload;
+        return this;
+    }
+
+    /**
+     * Gzip upload requests and send them with "Content-Encoding: gzip". Event batches are
+     * highly repetitive JSON, so this typically cuts the bytes sent several times over.
+     * The checksum is still computed over the uncompressed payload.
+     */
+    public AmplitudeClient setGzipUpload(boolean gzipUpload) {
+        this.gzipUpload = gzipUpload;
+        return this;
+    }
+
+    /**
+     * Let up to uploadConcurrency upload batches be in flight at once, each on its own
+     * connection, instead of waiting for each batch to finish before sending the next.
+     * Cuts the time to drain a large backlog on high latency networks. Events are still
+     * only removed once every batch before them has been accepted.
+     */
+    public AmplitudeClient setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = Math.max(1, uploadConcurrency);
+        return this;
+    }
+
+    /**
+     * Adapt the number of events per upload batch to the network instead of using a fixed
+     * eventUploadMaxBatchSize. The size starts at eventUploadMaxBatchSize, grows by a fixed
+     * step after every full batch that is accepted quickly, up to 1000 events, and is halved
+     * after a slow response, a timeout or a 413. Batches are also kept under
+     * eventUploadMaxBatchBytes.
+     */
+    public AmplitudeClient setAdaptiveBatchSize(boolean adaptiveBatchSize) {
+        this.adaptiveBatchSize = adaptiveBatchSize;
+        resetBatchSizeController();
+        return this;
+    }
+
+    /**
+     * Fill each upload batch up to eventUploadMaxBatchBytes of event JSON, measured before
+     * form encoding, rather than by event count alone. An event larger than this on its own
+     * is quarantined as soon as an upload reaches it instead of failing every request it is
+     * in. A negative value removes the bound.
+     */
+    public AmplitudeClient setEventUploadMaxBatchBytes(long eventUploadMaxBatchBytes) {
+        this.eventUploadMaxBatchBytes = eventUploadMaxBatchBytes;
+        return this;
+    }
+
+    /**
+     * Back off after a failed upload instead of retrying whenever the next event is logged.
+     * After each consecutive failure, other than a 413, uploads pause for an exponentially
+     * growing, randomly jittered delay between 5 seconds and 15 minutes, and are retried
+     * automatically once it passes. See getNextUploadAttemptTime and resetUploadBackoff.
+     */
+    public AmplitudeClient setUploadRetryBackoff(boolean uploadRetryBackoff) {
+        this.uploadRetryBackoff = uploadRetryBackoff;
+        if (!uploadRetryBackoff) {
+            resetUploadBackoff();
+        }
+        return this;
+    }
+
+    /**
+     * Clear the upload backoff and retry right away, for example when the device regains
+     * connectivity.
+     */
+    public void resetUploadBackoff() {
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                if (retryScheduler.getNextAttemptMillis() == 0) {
+                    return;
+                }
+                retryScheduler.reset();
+                logThread.removeCallbacks(retryUpload);
+                updateServer();
+            }
+        });
+    }
+
+    /**
+     * @return the time in milliseconds since epoch before which no upload will be attempted
+     *         because of earlier failures, or 0 if uploads are not backing off
+     */
+    public long getNextUploadAttemptTime() {
+        long nextAttemptMillis = retryScheduler.getNextAttemptMillis();
+        if (nextAttemptMillis == 0) {
+            return 0;
+        }
+        long delayMillis = Math.max(0, nextAttemptMillis - SystemClock.elapsedRealtime());
+        return System.currentTimeMillis() + delayMillis;
+    }
+
+    /**
+     * Check the network before uploading. Uploads wait while the device is offline and
+     * start as soon as it reconnects, and on API level 21 and up the periodic upload waits
+     * up to 5 minutes for the cellular radio to be woken by other traffic rather than waking
+     * it itself. Requires the ACCESS_NETWORK_STATE permission; without it uploads are
+     * attempted as usual.
+     */
+    public AmplitudeClient setConnectivityAwareUpload(boolean connectivityAwareUpload) {
+        this.connectivityAwareUpload = connectivityAwareUpload;
+        updateConnectivityMonitor();
+        return this;
+    }
+
+    /**
+     * Only upload over unmetered networks such as Wi-Fi, unless at least
+     * meteredUploadBacklog events are waiting. Requires the ACCESS_NETWORK_STATE permission.
+     */
+    public AmplitudeClient setUnmeteredUploadOnly(boolean unmeteredUploadOnly) {
+        this.unmeteredUploadOnly = unmeteredUploadOnly;
+        updateConnectivityMonitor();
+        return this;
+    }
+
+    /**
+     * The number of waiting events above which setUnmeteredUploadOnly uploads over metered
+     * networks anyway.
+     */
+    public AmplitudeClient setMeteredUploadBacklog(int meteredUploadBacklog) {
+        this.meteredUploadBacklog = meteredUploadBacklog;
+        return this;
+    }
+
+    /**
+     * When the app leaves the foreground, upload the waiting events right away in one batch,
+     * as large as fits setBackgroundFlushTimeBudgetMillis, and skip the periodic uploads
+     * while the app is in the foreground. Requires foreground tracking, see
+     * enableForegroundTracking.
+     */
+    public AmplitudeClient setFlushOnBackground(boolean flushOnBackground) {
+        this.flushOnBackground = flushOnBackground;
+        return this;
+    }
+
+    /**
+     * Send user properties only when they change, instead of a full copy with every event.
+     * The changes made by setUserProperties are coalesced into $identify events, saved just
+     * before the next event or upload, and other events then carry empty user_properties.
+     */
+    public AmplitudeClient setUserPropertiesOnChange(final boolean userPropertiesOnChange) {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                AmplitudeClient instance = AmplitudeClient.this;
+                if (userPropertiesOnChange == instance.userPropertiesOnChange) {
+                    return;
+                }
+                if (userPropertiesOnChange) {
+                    // the properties may not have gone out with an event yet
+                    instance.pendingUserProperties = instance.userProperties;
+                } else {
+                    // events merge the full copy, but a clear has to be sent
+                    saveUserPropertiesChanges(System.currentTimeMillis());
+                }
+                instance.userPropertiesOnChange = userPropertiesOnChange;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * How long the upload on leaving the foreground should take, going by the throughput
+     * of earlier uploads.
+     */
+    public AmplitudeClient setBackgroundFlushTimeBudgetMillis(long backgroundFlushTimeBudgetMillis) {
+        this.backgroundFlushTimeBudgetMillis = backgroundFlushTimeBudgetMillis;
+        return this;
+    }
+
+    private synchronized void updateConnectivityMonitor() {
+        if (context == null) {
+            return;
+        }
+        if (connectivityAwareUpload || unmeteredUploadOnly) {
+            if (connectivityMonitor == null) {
+                connectivityMonitor = new ConnectivityMonitor(context);
+            }
+            connectivityMonitor.start(new Runnable() {
+                @Override
+                public void run() {
+                    onConnectivityChanged();
+                }
+            });
+        } else if (connectivityMonitor != null) {
+            connectivityMonitor.stop();
+            connectivityMonitor = null;
+        }
+    }
+
+    private void onConnectivityChanged() {
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                ConnectivityMonitor monitor = connectivityMonitor;
+                if (monitor == null
+                        || monitor.getNetworkState() == ConnectivityMonitor.NETWORK_NONE) {
+                    return;
+                }
+                // failures on the old network say nothing about the new one
+                retryScheduler.reset();
+                logThread.removeCallbacks(retryUpload);
+                if (getEventStore().getEventCount() > 0) {
+                    updateServer();
+                }
+            }
+        });
+    }
+
+    // Always call this from logThread
+    private boolean isNetworkUsable() {
+        ConnectivityMonitor monitor = connectivityMonitor;
+        if (monitor == null) {
+            return true;
+        }
+        switch (monitor.getNetworkState()) {
+            case ConnectivityMonitor.NETWORK_NONE:
+                // onConnectivityChanged uploads once the device reconnects
+                return false;
+            case ConnectivityMonitor.NETWORK_METERED:
+                return !unmeteredUploadOnly
+                        || getEventStore().getEventCount() >= meteredUploadBacklog;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * For the periodic upload, check whether to wait for the radio to become active.
+     * Always call this from logThread.
+     */
+    private boolean waitForRadio() {
+        ConnectivityMonitor monitor = connectivityMonitor;
+        if (!connectivityAwareUpload || monitor == null || monitor.isRadioActive()) {
+            radioWaitStartMillis = -1;
+            return false;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (radioWaitStartMillis < 0) {
+            radioWaitStartMillis = now;
+        }
+        long waitedMillis = now - radioWaitStartMillis;
+        if (waitedMillis >= Constants.UPLOAD_RADIO_MAX_WAIT_MILLIS) {
+            // waited long enough, wake it up
+            radioWaitStartMillis = -1;
+            return false;
+        }
+        monitor.runWhenRadioActive(radioActiveUpload);
+        updateServerLater(Constants.UPLOAD_RADIO_MAX_WAIT_MILLIS - waitedMillis);
+        return true;
+    }
+
+    private void resetBatchSizeController() {
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                batchSizeController = null;
+            }
+        });
+    }
+
+    // Always call this from logThread
+    private BatchSizeController getBatchSizeController() {
+        if (batchSizeController == null) {
+            batchSizeController = new BatchSizeController(eventUploadMaxBatchSize,
+                    Constants.EVENT_UPLOAD_ADAPTIVE_MAX_BATCH_SIZE,
+                    Constants.EVENT_UPLOAD_BATCH_SIZE_INCREMENT,
+                    Constants.EVENT_UPLOAD_TARGET_LATENCY_MILLIS);
+        }
+        return batchSizeController;
     }
 
     public AmplitudeClient trackSessionEvents(boolean trackingSessionEvents) {
         this.trackingSessionEvents = trackingSessionEvents;
-        return instance;
+        return this;
     }
 
     void useForegroundTracking() {
@@ -251,12 +775,86 @@ public class AmplitudeClient {
         }
     }
 
+    /**
+     * Log an event built with Event.Builder. Its properties are immutable, so unlike with the
+     * JSONObject overloads they are passed to the background thread without being copied.
+     */
+    public void logEvent(Event event) {
+        if (event == null) {
+            Log.e(TAG, "Argument event cannot be null in logEvent()");
+            return;
+        }
+        if (validateLogEvent(event.getEventType())) {
+            long timestamp = event.getTimestamp() >= 0
+                    ? event.getTimestamp() : System.currentTimeMillis();
+            logEventAsync(event, null, timestamp);
+        }
+    }
+
     public void logEventSync(String eventType, JSONObject eventProperties) {
         if (validateLogEvent(eventType)) {
+            if (!awaitInitialization(Constants.INITIALIZATION_TIMEOUT_MILLIS)) {
+                Log.w(TAG, "logEventSync() called before initialize() finished");
+            }
             logEvent(eventType, eventProperties, null, System.currentTimeMillis(), false);
+            flushPendingEvents();
         }
     }
 
+    /**
+     * Replace the SQLite database used to store unsent events, for example with an
+     * InMemoryEventStore. Device ids are only persisted across launches if the store is.
+     */
+    public AmplitudeClient setEventStore(EventStore eventStore) {
+        this.eventStore = eventStore;
+        if (eventStore != null) {
+            eventStore.setEventCapacity(eventMaxCount, overflowPolicy);
+        }
+        return this;
+    }
+
+    EventStore getEventStore() {
+        if (eventStore != null) {
+            return eventStore;
+        }
+        return DatabaseHelper.getDatabaseHelper(context);
+    }
+
+    /**
+     * Upload events with the given OkHttpClient, for example to share the app's connection
+     * pool, timeouts or interceptors. By default each client creates one of its own, which
+     * keeps its connection to the server alive between batches.
+     */
+    public AmplitudeClient setHttpClient(OkHttpClient httpClient) {
+        synchronized (this) {
+            this.httpClient = httpClient;
+        }
+        return this;
+    }
+
+    synchronized OkHttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = createHttpClient();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Create the long lived client used for every upload. Uploads go to a single host one
+     * batch at a time, so the client gets its own small pool rather than the process wide
+     * default one. OkHttp doesn't time out by default, and a stalled upload would hold its
+     * slot in the upload window forever.
+     */
+    protected OkHttpClient createHttpClient() {
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectTimeout(Constants.HTTP_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(Constants.HTTP_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        client.setConnectionPool(new ConnectionPool(
+                Math.max(Constants.HTTP_MAX_IDLE_CONNECTIONS, uploadConcurrency),
+                Constants.HTTP_KEEP_ALIVE_DURATION_MILLIS));
+        return client;
+    }
+
     protected boolean validateLogEvent(String eventType) {
         if (TextUtils.isEmpty(eventType)) {
             Log.e(TAG, "Argument eventType cannot be null or blank in logEvent()");
@@ -270,34 +868,53 @@ public class AmplitudeClient {
         return true;
     }
 
-    protected void logEventAsync(final String eventType, JSONObject eventProperties,
-            final JSONObject apiProperties, final long timestamp, final boolean outOfSession) {
-        // Clone the incoming eventProperties object before sending over
+    protected void logEventAsync(String eventType, JSONObject eventProperties,
+            JSONObject apiProperties, long timestamp, boolean outOfSession) {
+        // Copy the incoming eventProperties object before sending over
         // to the log thread. Helps avoid ConcurrentModificationException
         // if the caller starts mutating the object they passed in.
         // Only does a shallow copy, so it's still possible, though unlikely,
         // to hit concurrent access if the caller mutates deep in the object.
-        if (eventProperties != null) {
-            eventProperties = cloneJSONObject(eventProperties);
-        }
+        logEventAsync(toEvent(eventType, eventProperties, outOfSession), apiProperties, timestamp);
+    }
 
-        final JSONObject copyEventProperties = eventProperties;
+    protected void logEventAsync(final Event event, final JSONObject apiProperties,
+            final long timestamp) {
         runOnLogThread(new Runnable() {
             @Override
             public void run() {
-                logEvent(eventType, copyEventProperties, apiProperties, timestamp, outOfSession);
+                logEvent(event, apiProperties, timestamp);
             }
         });
     }
 
+    private Event toEvent(String eventType, JSONObject eventProperties, boolean outOfSession) {
+        return new Event.Builder(eventType)
+                .setEventProperties(EventProperties.fromJSONObject(eventProperties))
+                .setOutOfSession(outOfSession)
+                .build();
+    }
+
     protected long logEvent(String eventType, JSONObject eventProperties,
             JSONObject apiProperties, long timestamp, boolean outOfSession) {
+        return logEvent(toEvent(eventType, eventProperties, outOfSession), apiProperties,
+                timestamp);
+    }
+
+    protected long logEvent(Event event, JSONObject apiProperties, long timestamp) {
+        String eventType = event.getEventType();
+        boolean outOfSession = event.isOutOfSession();
         Log.d(TAG, "Logged event to Amplitude: " + eventType);
 
         if (optOut) {
             return -1;
         }
 
+        if (userPropertiesOnChange) {
+            // the event has to follow the changes made before it
+            saveUserPropertiesChanges(timestamp);
+        }
+
         // skip session check if logging start_session or end_session events
         boolean loggingSessionEvent = trackingSessionEvents &&
                 (eventType.equals(START_SESSION_EVENT) || eventType.equals(END_SESSION_EVENT));
@@ -311,107 +928,256 @@ public class AmplitudeClient {
             }
         }
 
-        JSONObject event = new JSONObject();
-        try {
-            event.put("event_type", replaceWithJSONNull(eventType));
-            event.put("timestamp", timestamp);
-            event.put("user_id", replaceWithJSONNull(userId));
-            event.put("device_id", replaceWithJSONNull(deviceId));
-            event.put("session_id", outOfSession ? -1 : sessionId);
-            event.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            event.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            event.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            event.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            event.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            event.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
-            event.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
-            event.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
-            event.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
-            event.put("platform", Constants.PLATFORM);
-
-            JSONObject library = new JSONObject();
-            library.put("name", Constants.LIBRARY);
-            library.put("version", Constants.VERSION);
-            event.put("library", library);
-
-            apiProperties = (apiProperties == null) ? new JSONObject() : apiProperties;
-            Location location = deviceInfo.getMostRecentLocation();
-            if (location != null) {
-                JSONObject locationJSON = new JSONObject();
-                locationJSON.put("lat", location.getLatitude());
-                locationJSON.put("lng", location.getLongitude());
-                apiProperties.put("location", locationJSON);
-            }
-            if (deviceInfo.getAdvertisingId() != null) {
-                apiProperties.put("androidADID", deviceInfo.getAdvertisingId());
-            }
-            apiProperties.put("limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
-
-            event.put("api_properties", apiProperties);
-            event.put("event_properties", (eventProperties == null) ? new JSONObject()
-                    : eventProperties);
-            event.put("user_properties", (userProperties == null) ? new JSONObject()
-                    : userProperties);
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
+        String userPropertiesMembers = null;
+        UserProperties snapshot = userProperties;
+        if (!userPropertiesOnChange && snapshot != null) {
+            userPropertiesMembers = snapshot.getMembers();
         }
+        return saveEvent(event, apiProperties, userPropertiesMembers, timestamp);
+    }
 
-        return saveEvent(event);
+    /**
+     * Encode and save an event, after the session bookkeeping is done.
+     * @param userPropertiesMembers the members of the event's user_properties, without
+     *            braces
+     */
+    private long saveEvent(Event event, JSONObject apiProperties, String userPropertiesMembers,
+            long timestamp) {
+        String eventType = event.getEventType();
+        boolean outOfSession = event.isOutOfSession();
+        String json;
+        synchronized (eventEncoder) {
+            EventEncoder encoder = eventEncoder.reset();
+            try {
+                encoder.beginObject()
+                        .name("event_type").value(eventType)
+                        .name("timestamp").value(timestamp)
+                        .name("user_id").value(userId)
+                        .name("device_id").value(deviceId)
+                        .name("session_id").value(outOfSession ? -1 : sessionId)
+                        .rawMembers(getDeviceContextTemplate().getFragment());
+
+                // apiProperties only carries the SDK's own special keys, which never clash
+                // with the ones added here
+                encoder.name("api_properties").beginObject().members(apiProperties);
+                Location location = deviceInfo.getMostRecentLocation();
+                if (location != null) {
+                    encoder.name("location").beginObject()
+                            .name("lat").value(location.getLatitude())
+                            .name("lng").value(location.getLongitude())
+                            .endObject();
+                }
+                if (deviceInfo.getAdvertisingId() != null) {
+                    encoder.name("androidADID").value(deviceInfo.getAdvertisingId());
+                }
+                encoder.name("limit_ad_tracking").value(deviceInfo.isLimitAdTrackingEnabled())
+                        .endObject();
+
+                encoder.name("event_properties").beginObject()
+                        .members(event.getEventProperties()).endObject()
+                        .name("user_properties").beginObject().rawMembers(userPropertiesMembers)
+                        .endObject()
+                        .endObject();
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                return -1;
+            }
+            json = encoder.toJson();
+        }
+
+        return saveEvent(eventType, json);
+    }
+
+    /**
+     * Save the user properties changes made since the last call as $identify events: one
+     * with $clearAll if they were replaced, then one with $set for the properties set.
+     * Always call this from logThread.
+     */
+    private void saveUserPropertiesChanges(long timestamp) {
+        boolean clear = pendingUserPropertiesClear;
+        UserProperties changes = pendingUserProperties;
+        if (!clear && changes == null) {
+            return;
+        }
+        pendingUserPropertiesClear = false;
+        pendingUserProperties = null;
+
+        Event identify = new Event.Builder(IDENTIFY_EVENT).setOutOfSession(true).build();
+        if (clear) {
+            saveEvent(identify, null, "\"$clearAll\":\"-\"", timestamp);
+        }
+        if (changes != null && changes.size() > 0) {
+            saveEvent(identify, null, "\"$set\":" + changes, timestamp);
+        }
     }
 
+    private DeviceContextTemplate getDeviceContextTemplate() {
+        DeviceContextTemplate template = deviceContextTemplate;
+        if (template == null) {
+            template = new DeviceContextTemplate(deviceInfo);
+            deviceContextTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * @deprecated No longer called by the SDK, events are serialized by logEvent and saved
+     *             through saveEvent(String, String). Overriding this no longer sees events.
+     * @return the id of the saved event, or -1 if the event was buffered for group commit
+     */
+    @Deprecated
     protected long saveEvent(JSONObject event) {
-        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-        long eventId = dbHelper.addEvent(event.toString());
-        setLastEventId(eventId);
-        long eventCount = dbHelper.getEventCount();
+        return saveEvent(event.optString("event_type", null), event.toString());
+    }
 
-        if (eventCount >= eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(Constants.EVENT_REMOVE_BATCH_SIZE));
+    /**
+     * @param event the event serialized as a JSON object
+     * @return the id of the saved event, or -1 if the event was buffered for group commit
+     */
+    protected long saveEvent(String eventType, String event) {
+        int priority = getEventPriority(eventType);
+        if (eventIngestBatchSize > 1) {
+            int pendingCount;
+            synchronized (pendingEvents) {
+                pendingEvents.add(new Pair<String, Integer>(event, priority));
+                pendingCount = pendingEvents.size();
+            }
+
+            if (pendingCount >= eventIngestBatchSize) {
+                flushPendingEvents();
+            } else {
+                flushPendingEventsLater();
+            }
+            return -1;
         }
 
-        if ((eventCount % eventUploadThreshold) == 0 && eventCount >= eventUploadThreshold) {
+        EventStore store = getEventStore();
+        long eventId = store.addEvent(event, priority);
+        onEventsSaved(eventId, 1);
+        return eventId;
+    }
+
+    private int getEventPriority(String eventType) {
+        if (eventType == null) {
+            return 0;
+        }
+        synchronized (eventPriorities) {
+            Integer priority = eventPriorities.get(eventType);
+            return priority == null ? 0 : priority;
+        }
+    }
+
+    private void flushPendingEventsLater() {
+        if (flushScheduled.getAndSet(true)) {
+            return;
+        }
+
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                flushPendingEvents();
+            }
+        }, eventIngestMaxLatencyMillis);
+    }
+
+    /**
+     * Write all buffered events to the database in one transaction.
+     */
+    void flushPendingEvents() {
+        List<Pair<String, Integer>> events;
+        synchronized (pendingEvents) {
+            if (pendingEvents.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<Pair<String, Integer>>(pendingEvents);
+            pendingEvents.clear();
+        }
+
+        EventStore store = getEventStore();
+        long eventId = store.addEvents(events);
+        onEventsSaved(eventId, events.size());
+    }
+
+    private void onEventsSaved(long lastEventId, int numEvents) {
+        EventStore store = getEventStore();
+        if (lastEventId >= 0) {
+            setLastEventId(lastEventId);
+        }
+        // the database enforces eventMaxCount as it inserts, see setEventOverflowPolicy
+        long eventCount = store.getEventCount();
+
+        // upload whenever the queue crosses a multiple of the threshold
+        long previousCount = Math.max(0, eventCount - numEvents);
+        if (eventCount >= eventUploadThreshold
+                && (eventCount / eventUploadThreshold) > (previousCount / eventUploadThreshold)) {
             updateServer();
-        } else {
+        } else if (!(flushOnBackground && inForeground)) {
+            // with flushOnBackground the events wait for the app to leave the foreground
             updateServerLater(eventUploadPeriodMillis);
         }
+    }
 
-        return eventId;
+    private synchronized SessionState getSessionState() {
+        if (sessionState == null) {
+            sessionState = new SessionState(context.getSharedPreferences(
+                    getSharedPreferencesName(), Context.MODE_PRIVATE));
+        }
+        return sessionState;
+    }
+
+    /**
+     * Write the session state soon, coalescing the changes made until then.
+     */
+    private void persistSessionStateLater() {
+        if (sessionStatePersistScheduled.getAndSet(true)) {
+            return;
+        }
+
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                sessionStatePersistScheduled.set(false);
+                persistSessionState();
+            }
+        }, Constants.SESSION_STATE_PERSIST_DELAY_MILLIS);
+    }
+
+    // Always call this from logThread
+    void persistSessionState() {
+        if (context != null) {
+            getSessionState().persist();
+        }
     }
 
     long getLastEventTime() {
-        SharedPreferences preferences = context.getSharedPreferences(
-                getSharedPreferencesName(), Context.MODE_PRIVATE);
-        return preferences.getLong(Constants.PREFKEY_LAST_EVENT_TIME, -1);
+        return getSessionState().getLastEventTime();
     }
 
     void setLastEventTime(long timestamp) {
-        SharedPreferences preferences = context.getSharedPreferences(
-                getSharedPreferencesName(), Context.MODE_PRIVATE);
-        preferences.edit().putLong(Constants.PREFKEY_LAST_EVENT_TIME, timestamp).commit();
+        if (getSessionState().setLastEventTime(timestamp)) {
+            persistSessionStateLater();
+        }
     }
 
     long getLastEventId() {
-        SharedPreferences preferences = context.getSharedPreferences(
-                getSharedPreferencesName(), Context.MODE_PRIVATE);
-        return preferences.getLong(Constants.PREFKEY_LAST_EVENT_ID, -1);
+        return getSessionState().getLastEventId();
     }
 
     void setLastEventId(long eventId) {
-        SharedPreferences preferences = context.getSharedPreferences(
-                getSharedPreferencesName(), Context.MODE_PRIVATE);
-        preferences.edit().putLong(Constants.PREFKEY_LAST_EVENT_ID, eventId).commit();
+        if (getSessionState().setLastEventId(eventId)) {
+            persistSessionStateLater();
+        }
     }
 
     long getPreviousSessionId() {
-        SharedPreferences preferences = context.getSharedPreferences(
-                getSharedPreferencesName(), Context.MODE_PRIVATE);
-        return preferences.getLong(Constants.PREFKEY_PREVIOUS_SESSION_ID, -1);
+        return getSessionState().getPreviousSessionId();
     }
 
     void setPreviousSessionId(long timestamp) {
-        SharedPreferences preferences = context.getSharedPreferences(
-                getSharedPreferencesName(), Context.MODE_PRIVATE);
-        preferences.edit().putLong(Constants.PREFKEY_PREVIOUS_SESSION_ID, timestamp).commit();
+        if (getSessionState().setPreviousSessionId(timestamp)) {
+            persistSessionStateLater();
+        }
     }
 
     boolean startNewSessionIfNeeded(long timestamp) {
@@ -502,14 +1268,55 @@ public class AmplitudeClient {
         logEvent(sessionEvent, null, apiProperties, timestamp, false);
     }
 
-    void onExitForeground(long timestamp) {
-        refreshSessionTime(timestamp);
-        inForeground = false;
+    void onExitForeground(final long timestamp) {
+        // the session state and uploads are only touched from logThread
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                refreshSessionTime(timestamp);
+                inForeground = false;
+                if (userPropertiesOnChange) {
+                    saveUserPropertiesChanges(System.currentTimeMillis());
+                }
+                // the process may be killed any time now
+                flushPendingEvents();
+                persistSessionState();
+                if (flushOnBackground) {
+                    // wait a moment, switching between activities also pauses one
+                    logThread.removeCallbacks(backgroundFlush);
+                    logThread.postDelayed(backgroundFlush,
+                            Constants.BACKGROUND_FLUSH_DELAY_MILLIS);
+                }
+            }
+        });
     }
 
-    void onEnterForeground(long timestamp) {
-        startNewSessionIfNeeded(timestamp);
-        inForeground = true;
+    void onEnterForeground(final long timestamp) {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                startNewSessionIfNeeded(timestamp);
+                inForeground = true;
+                logThread.removeCallbacks(backgroundFlush);
+                backgroundFlushPending = false;
+            }
+        });
+    }
+
+    void onTrimMemory(int level) {
+        if (level < ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || context == null) {
+            return;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                // write buffered events before the store is closed
+                flushPendingEvents();
+                persistSessionState();
+                getEventStore().close();
+            }
+        });
     }
 
     public void logRevenue(double amount) {
@@ -555,33 +1362,30 @@ public class AmplitudeClient {
                 if (userProperties == null) {
                     if (replace) {
                         instance.userProperties = null;
+                        if (instance.userPropertiesOnChange) {
+                            instance.pendingUserPropertiesClear = true;
+                            instance.pendingUserProperties = null;
+                        }
                     }
                     return;
                 }
 
-                // Create deep copy to try and prevent ConcurrentModificationException
-                JSONObject copy;
+                // The properties are encoded here, once, so later changes the caller
+                // makes to the JSONObject don't reach the snapshot
                 try {
-                    copy = new JSONObject(userProperties.toString());
+                    instance.userProperties = UserProperties.merge(
+                            instance.userProperties, userProperties, replace);
+                    if (instance.userPropertiesOnChange) {
+                        if (replace) {
+                            instance.pendingUserPropertiesClear = true;
+                        }
+                        instance.pendingUserProperties = UserProperties.merge(
+                                instance.pendingUserProperties, userProperties, replace);
+                    }
                 } catch (JSONException e) {
                     Log.e(TAG, e.toString());
-                    return; // could not create copy, cannot merge
-                } // catch (ConcurrentModificationException e) {}
-
-                JSONObject currentUserProperties = instance.userProperties;
-                if (replace || currentUserProperties == null) {
-                    instance.userProperties = copy;
-                    return;
-                }
-
-                Iterator<?> keys = copy.keys();
-                while (keys.hasNext()) {
-                    String key = (String) keys.next();
-                    try {
-                        currentUserProperties.put(key, copy.get(key));
-                    } catch (JSONException e) {
-                        Log.e(TAG, e.toString());
-                    }
+                } catch (ConcurrentModificationException e) {
+                    Log.e(TAG, "User properties were modified while being set: " + e);
                 }
             }
         });
@@ -629,7 +1433,9 @@ public class AmplitudeClient {
             @Override
             public void run() {
                 updateScheduled.set(false);
-                updateServer();
+                if (!waitForRadio()) {
+                    updateServer();
+                }
             }
         }, delayMillis);
     }
@@ -640,29 +1446,228 @@ public class AmplitudeClient {
 
     // Always call this from logThread
     protected void updateServer(boolean limit) {
-        if (optOut || offline) {
+        if (!prepareUpload()) {
             return;
         }
 
-        if (!uploadingCurrently.getAndSet(true)) {
-            DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-            try {
-                long lastEventId = getLastEventId();
-                int batchLimit = limit ? (backoffUpload ? backoffUploadBatchSize : eventUploadMaxBatchSize) : -1;
-                Pair<Long, JSONArray> pair = dbHelper.getEvents(lastEventId, batchLimit);
-                final long maxId = pair.first;
-                final JSONArray events = pair.second;
-                httpThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        makeEventUploadPostRequest(new OkHttpClient(), events.toString(), maxId);
-                    }
-                });
-            } catch (JSONException e) {
-                uploadingCurrently.set(false);
-                Log.e(TAG, e.toString());
+        EventStore store = getEventStore();
+        long lastEventId = getLastEventId();
+        int batchLimit = -1;
+        if (limit) {
+            if (adaptiveBatchSize) {
+                batchLimit = getBatchSizeController().getBatchLimit();
+            } else {
+                batchLimit = backoffUpload ? backoffUploadBatchSize : eventUploadMaxBatchSize;
+            }
+        }
+        try {
+            while (uploadWindow.getPendingCount() < uploadConcurrency) {
+                if (!uploadNextBatch(store, lastEventId, batchLimit)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
+    /**
+     * Upload once in a single batch, as large as fits backgroundFlushTimeBudgetMillis.
+     * Always call this from logThread.
+     */
+    private void flushInBackground() {
+        backgroundFlushPending = false;
+        if (inForeground) {
+            return;
+        }
+        if (uploadWindow.getPendingCount() >= uploadConcurrency) {
+            // run again once a batch in flight finishes, see onEventUploadFinished
+            backgroundFlushPending = true;
+            return;
+        }
+        if (!prepareUpload()) {
+            return;
+        }
+        EventStore store = getEventStore();
+        if (store.getEventCount() == 0) {
+            return;
+        }
+        int batchLimit = adaptiveBatchSize
+                ? getBatchSizeController().getBatchLimit() : eventUploadMaxBatchSize;
+        if (uploadEventsPerMilli > 0) {
+            // as many as the measured throughput fits in the budget, fewer than a normal
+            // batch on a slow link
+            long fits = (long) (uploadEventsPerMilli * backgroundFlushTimeBudgetMillis);
+            batchLimit = (int) Math.min(Constants.BACKGROUND_FLUSH_MAX_BATCH_SIZE,
+                    Math.max(1, fits));
+        }
+        try {
+            uploadNextBatch(store, getLastEventId(), batchLimit);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+        }
+    }
+
+    /**
+     * Check whether an upload may go ahead now.
+     * Always call this from logThread.
+     */
+    private boolean prepareUpload() {
+        if (optOut || offline) {
+            return false;
+        }
+        if (uploadRetryBackoff && !retryScheduler.canAttempt(SystemClock.elapsedRealtime())) {
+            // retryUpload is already scheduled for when the backoff ends
+            return false;
+        }
+
+        if (userPropertiesOnChange) {
+            saveUserPropertiesChanges(System.currentTimeMillis());
+        }
+        // make sure buffered events are part of this upload
+        flushPendingEvents();
+        if (!isNetworkUsable()) {
+            return false;
+        }
+        ConnectivityMonitor monitor = connectivityMonitor;
+        if (radioWaitStartMillis >= 0 && monitor != null) {
+            // uploading anyway, stop waiting for the radio
+            monitor.cancelRadioActive();
+        }
+        radioWaitStartMillis = -1;
+        return true;
+    }
+
+    /**
+     * Send the next range of events not yet covered by a batch in flight, filling the
+     * gaps left by failed batches first.
+     * @return false if there was nothing left to send
+     */
+    private boolean uploadNextBatch(EventStore store, long lastEventId, int batchLimit)
+            throws IOException {
+        long afterId = uploadWindow.getNextAfterId();
+        long gapEnd = uploadWindow.getGapEnd();
+        long upToId = gapEnd >= 0 ? gapEnd : lastEventId;
+
+        // splice the stored JSON strings together rather than parse and reserialize
+        JsonEventBatch batch = streamingUpload ? null : new JsonEventBatch();
+        BatchCounter counter = streamingUpload ? new BatchCounter() : null;
+        final long maxId = store.readEvents(afterId, upToId, batchLimit,
+                eventUploadMaxBatchBytes, streamingUpload ? counter : batch);
+        if (maxId < 0) {
+            if (gapEnd >= 0) {
+                // the events in the gap are gone, nothing to resend
+                long removeUpToId = uploadWindow.succeed(uploadWindow.add(afterId, gapEnd, -1));
+                if (removeUpToId >= 0) {
+                    store.removeEvents(removeUpToId);
+                }
+                return true;
+            }
+            if (!uploadWindow.isEmpty()) {
+                return false;
+            }
+            // nothing in flight either, send the empty batch anyway as before
+        }
+
+        int thread = uploadWindow.getFreeThread();
+        UploadWindow.Batch windowBatch = uploadWindow.add(afterId, maxId, thread);
+        windowBatch.failuresAtSend = retryScheduler.getFailures();
+        if (streamingUpload) {
+            windowBatch.eventCount = counter.eventCount;
+            final EventUploadRequestBody body =
+                    new EventUploadRequestBody(store, apiKey, afterId, maxId);
+            getHttpThread(thread).post(new Runnable() {
+                @Override
+                public void run() {
+                    makeStreamingEventUploadPostRequest(getHttpClient(), body);
+                }
+            });
+        } else {
+            final String events = batch.build();
+            windowBatch.eventCount = batch.size();
+            getHttpThread(thread).post(new Runnable() {
+                @Override
+                public void run() {
+                    makeEventUploadPostRequest(getHttpClient(), events, maxId);
+                }
+            });
+        }
+        return maxId >= 0;
+    }
+
+    private WorkerThread getHttpThread(int index) {
+        while (httpThreads.size() <= index) {
+            httpThreads.add(new WorkerThread("httpThread-" + httpThreads.size()));
+        }
+        return httpThreads.get(index);
+    }
+
+    // Always call this from logThread
+    private void onEventUploadFinished(long maxId, int result, long latencyMillis) {
+        UploadWindow.Batch batch = uploadWindow.find(maxId);
+        if (batch == null) {
+            return;
+        }
+        if (backgroundFlushPending) {
+            // runs after this batch has left the window
+            backgroundFlushPending = false;
+            logThread.post(backgroundFlush);
+        }
+        if (adaptiveBatchSize) {
+            getBatchSizeController().onBatchFinished(batch.eventCount, result, latencyMillis);
+        }
+        if (result == BatchSizeController.RESULT_FAILED
+                || result == BatchSizeController.RESULT_TIMEOUT) {
+            // batches sent before the current backoff started already count as its failure
+            if (uploadRetryBackoff && !retryScheduler.isCounted(batch.failuresAtSend)) {
+                long delayMillis = retryScheduler.onFailure(SystemClock.elapsedRealtime());
+                logThread.removeCallbacks(retryUpload);
+                logThread.postDelayed(retryUpload, delayMillis);
+            }
+        } else if (result == BatchSizeController.RESULT_SUCCESS) {
+            retryScheduler.reset();
+            if (latencyMillis > 0 && batch.eventCount > 0) {
+                double eventsPerMilli = (double) batch.eventCount / latencyMillis;
+                uploadEventsPerMilli = uploadEventsPerMilli > 0
+                        ? 0.7 * uploadEventsPerMilli + 0.3 * eventsPerMilli : eventsPerMilli;
             }
         }
+        if (result != BatchSizeController.RESULT_SUCCESS) {
+            uploadWindow.fail(batch);
+            if (result == BatchSizeController.RESULT_TOO_LARGE) {
+                if (batch.eventCount <= 1) {
+                    // blocked by one massive event, drop it
+                    getEventStore().removeEvent(maxId);
+                } else if (!adaptiveBatchSize) {
+                    // Server complained about length of request, backoff and try again.
+                    // Halve this batch rather than the current limit, so that batches
+                    // failing together only shrink it once.
+                    backoffUpload = true;
+                    backoffUploadBatchSize = Math.min(backoffUploadBatchSize,
+                            (int) Math.ceil(batch.eventCount / 2.0));
+                }
+                updateServer(true);
+            }
+            return;
+        }
+
+        EventStore store = getEventStore();
+        long removeUpToId = uploadWindow.succeed(batch);
+        if (removeUpToId >= 0) {
+            store.removeEvents(removeUpToId);
+        }
+        if (store.getEventCount() > eventUploadThreshold) {
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateServer(backoffUpload);
+                }
+            });
+        }
+        else {
+            backoffUpload = false;
+            backoffUploadBatchSize = eventUploadMaxBatchSize;
+        }
     }
 
     protected void makeEventUploadPostRequest(OkHttpClient client, String events, final long maxId) {
@@ -694,38 +1699,36 @@ public class AmplitudeClient {
             .add("checksum", checksumString)
             .build();
 
-        Request request = new Request.Builder()
-            .url(url)
-            .post(body)
-            .build();
+        executeEventUploadRequest(client, body, maxId);
+    }
+
+    /**
+     * Upload a batch of events streamed from the event store by the request body as it is
+     * sent. See setStreamingUpload.
+     */
+    protected void makeStreamingEventUploadPostRequest(OkHttpClient client,
+            EventUploadRequestBody body) {
+        executeEventUploadRequest(client, body, body.getMaxId());
+    }
+
+    private void executeEventUploadRequest(OkHttpClient client, RequestBody body, final long maxId) {
+        Request.Builder builder = new Request.Builder().url(url);
+        if (gzipUpload) {
+            // the checksum stays over the uncompressed form fields
+            builder.header("Content-Encoding", "gzip").post(new GzipRequestBody(body));
+        } else {
+            builder.post(body);
+        }
+        Request request = builder.build();
 
-        boolean uploadSuccess = false;
+        int result = BatchSizeController.RESULT_FAILED;
+        long startMillis = SystemClock.elapsedRealtime();
 
         try {
             Response response = client.newCall(request).execute();
             String stringResponse = response.body().string();
             if (stringResponse.equals("success")) {
-                uploadSuccess = true;
-                logThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-                        dbHelper.removeEvents(maxId);
-                        uploadingCurrently.set(false);
-                        if (dbHelper.getEventCount() > eventUploadThreshold) {
-                            logThread.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    updateServer(backoffUpload);
-                                }
-                            });
-                        }
-                        else {
-                            backoffUpload = false;
-                            backoffUploadBatchSize = eventUploadMaxBatchSize;
-                        }
-                    }
-                });
+                result = BatchSizeController.RESULT_SUCCESS;
             } else if (stringResponse.equals("invalid_api_key")) {
                 Log.e(TAG, "Invalid API key, make sure your API key is correct in initialize()");
             } else if (stringResponse.equals("bad_checksum")) {
@@ -735,30 +1738,17 @@ public class AmplitudeClient {
                 Log.w(TAG,
                         "Couldn't write to request database on server, will attempt to reupload later");
             } else if (response.code() == 413) {
-
-                // If blocked by one massive event, drop it
-                DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-                if (backoffUpload && backoffUploadBatchSize == 1) {
-                    dbHelper.removeEvent(maxId);
-                    // maybe we want to reset backoffUploadBatchSize after dropping massive event
-                }
-
-                // Server complained about length of request, backoff and try again
-                backoffUpload = true;
-                int numEvents = Math.min((int)dbHelper.getEventCount(), backoffUploadBatchSize);
-                backoffUploadBatchSize = (int)Math.ceil(numEvents / 2.0);
+                // the batch is shrunk on logThread, see onEventUploadFinished
                 Log.w(TAG, "Request too large, will decrease size and attempt to reupload");
-                logThread.post(new Runnable() {
-                   @Override
-                    public void run() {
-                       uploadingCurrently.set(false);
-                       updateServer(true);
-                   }
-                });
+                result = BatchSizeController.RESULT_TOO_LARGE;
             } else {
                 Log.w(TAG, "Upload failed, " + stringResponse
                         + ", will attempt to reupload later");
             }
+        } catch (java.net.SocketTimeoutException e) {
+            Log.w(TAG, "Upload timed out, will attempt to reupload later");
+            lastError = e;
+            result = BatchSizeController.RESULT_TIMEOUT;
         } catch (org.apache.http.conn.HttpHostConnectException e) {
             // Log.w(TAG,
             // "No internet connection found, unable to upload events");
@@ -780,10 +1770,15 @@ public class AmplitudeClient {
             lastError = e;
         }
 
-        if (!uploadSuccess) {
-            uploadingCurrently.set(false);
-        }
-
+        // the outcome is handled on logThread, which owns the upload state
+        final int finalResult = result;
+        final long latencyMillis = SystemClock.elapsedRealtime() - startMillis;
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                onEventUploadFinished(maxId, finalResult, latencyMillis);
+            }
+        });
     }
 
     /**
@@ -804,8 +1799,8 @@ public class AmplitudeClient {
         invalidIds.add("DEFACE");
 
         // see if device id already stored in db
-        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-        String deviceId = dbHelper.getValue(DEVICE_ID_KEY);
+        EventStore store = getEventStore();
+        String deviceId = store.getValue(DEVICE_ID_KEY);
         if (!(TextUtils.isEmpty(deviceId) || invalidIds.contains(deviceId))) {
             return deviceId;
         }
@@ -816,7 +1811,7 @@ public class AmplitudeClient {
 
             String advertisingId = deviceInfo.getAdvertisingId();
             if (!(TextUtils.isEmpty(advertisingId) || invalidIds.contains(advertisingId))) {
-                dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, advertisingId);
+                store.insertOrReplaceKeyValue(DEVICE_ID_KEY, advertisingId);
                 return advertisingId;
             }
         }
@@ -824,7 +1819,7 @@ public class AmplitudeClient {
         // If this still fails, generate random identifier that does not persist
         // across installations. Append R to distinguish as randomly generated
         String randomId = deviceInfo.generateUUID() + "R";
-        dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, randomId);
+        store.insertOrReplaceKeyValue(DEVICE_ID_KEY, randomId);
         return randomId;
     }
 
@@ -836,6 +1831,10 @@ public class AmplitudeClient {
         }
     }
 
+    /**
+     * @deprecated No longer called by the SDK, events are built without JSONObjects.
+     */
+    @Deprecated
     protected Object replaceWithJSONNull(Object obj) {
         return obj == null ? JSONObject.NULL : obj;
     }
@@ -872,32 +1871,6 @@ public class AmplitudeClient {
         return new String(hexChars);
     }
 
-    /**
-     * Do a shallow copy of a JSONObject. Takes a bit of code to avoid
-     * stringify and reparse given the API.
-     */
-    private JSONObject cloneJSONObject(final JSONObject obj) {
-        if (obj == null) {
-            return null;
-        }
-
-        // obj.names returns null if the json obj is empty.
-        JSONArray nameArray = obj.names();
-        int len = (nameArray != null ? nameArray.length() : 0);
-
-        String[] names = new String[len];
-        for (int i = 0; i < len; i++) {
-            names[i] = nameArray.optString(i);
-        }
-
-        try {
-            return new JSONObject(obj, names);
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            return null;
-        }
-    }
-
     /**
      * Move all preference data from the legacy name to the new, static name if needed.
      *
@@ -0,0 +1,40 @@
+package com.amplitude.api;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.util.Log;
+
+class AmplitudeComponentCallbacks implements ComponentCallbacks2 {
+
+    public static final String TAG = "com.amplitude.api.AmplitudeComponentCallbacks";
+    private static final String NULLMSG = "Need to initialize AmplitudeComponentCallbacks with AmplitudeClient instance";
+
+    private AmplitudeClient clientInstance = null;
+
+    public AmplitudeComponentCallbacks(AmplitudeClient clientInstance) {
+        if (clientInstance == null) {
+            Log.e(TAG, NULLMSG);
+            return;
+        }
+
+        this.clientInstance = clientInstance;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (clientInstance == null) {
+            Log.e(TAG, NULLMSG);
+            return;
+        }
+
+        clientInstance.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+}
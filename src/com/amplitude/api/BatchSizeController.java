@@ -0,0 +1,68 @@
+package com.amplitude.api;
+
+/**
+ * Picks the number of events to put in the next upload batch, additive increase,
+ * multiplicative decrease style. Each batch that is accepted quickly grows the batch size
+ * by a fixed step, while a slow response, a timeout or a 413 halves it, so the size settles
+ * on what the current network can carry within the target latency: large batches on fast
+ * Wi-Fi and small ones that still complete on 2G. The event store separately keeps each
+ * batch within the byte budget. Not thread safe, only used from logThread.
+ */
+class BatchSizeController {
+
+    static final int RESULT_SUCCESS = 0;
+    static final int RESULT_FAILED = 1;
+    static final int RESULT_TIMEOUT = 2;
+    static final int RESULT_TOO_LARGE = 3;
+
+    private final int maxBatchSize;
+    private final int batchSizeIncrement;
+    private final long targetLatencyMillis;
+
+    private int batchSize;
+
+    BatchSizeController(int initialBatchSize, int maxBatchSize, int batchSizeIncrement,
+            long targetLatencyMillis) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.batchSizeIncrement = batchSizeIncrement;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.batchSize = Math.max(1, Math.min(initialBatchSize, this.maxBatchSize));
+    }
+
+    /**
+     * @return the maximum number of events to send in the next batch, at least 1
+     */
+    int getBatchLimit() {
+        return batchSize;
+    }
+
+    /**
+     * Adapt to the outcome of an upload of eventCount events that took latencyMillis.
+     */
+    void onBatchFinished(int eventCount, int result, long latencyMillis) {
+        switch (result) {
+            case RESULT_SUCCESS:
+                if (latencyMillis > targetLatencyMillis) {
+                    decrease(batchSize);
+                } else if (eventCount >= batchSize) {
+                    // only grow when the batch was full, a short queue or the byte budget
+                    // says nothing about whether a larger batch would get through
+                    batchSize = Math.min(maxBatchSize, batchSize + batchSizeIncrement);
+                }
+                break;
+            case RESULT_TIMEOUT:
+                decrease(batchSize);
+                break;
+            case RESULT_TOO_LARGE:
+                decrease(Math.min(batchSize, eventCount));
+                break;
+            default:
+                // server side failures say nothing about the network
+                break;
+        }
+    }
+
+    private void decrease(int from) {
+        batchSize = Math.max(1, from / 2);
+    }
+}
@@ -0,0 +1,148 @@
+package com.amplitude.api;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Reports the state of the network for upload scheduling and calls back when it changes.
+ *
+ * Reading the network state needs the ACCESS_NETWORK_STATE permission, which the SDK does
+ * not require. Without it the state is NETWORK_UNKNOWN and uploads go ahead as before.
+ */
+class ConnectivityMonitor {
+
+    private static final String TAG = "com.amplitude.api.ConnectivityMonitor";
+
+    static final int NETWORK_UNKNOWN = 0;
+    static final int NETWORK_NONE = 1;
+    static final int NETWORK_METERED = 2;
+    static final int NETWORK_UNMETERED = 3;
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private final boolean permitted;
+
+    private BroadcastReceiver receiver;
+    private ConnectivityManager.OnNetworkActiveListener networkActiveListener;
+
+    ConnectivityMonitor(Context context) {
+        this.context = context;
+        this.connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.permitted = connectivityManager != null
+                && context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE)
+                == PackageManager.PERMISSION_GRANTED;
+        if (!permitted) {
+            Log.w(TAG, "ACCESS_NETWORK_STATE permission missing, can't check connectivity");
+        }
+    }
+
+    int getNetworkState() {
+        if (!permitted) {
+            return NETWORK_UNKNOWN;
+        }
+        try {
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            if (networkInfo == null || !networkInfo.isConnected()) {
+                return NETWORK_NONE;
+            }
+            return isMetered(networkInfo) ? NETWORK_METERED : NETWORK_UNMETERED;
+        } catch (Exception e) {
+            Log.w(TAG, "getActiveNetworkInfo failed", e);
+            return NETWORK_UNKNOWN;
+        }
+    }
+
+    private boolean isMetered(NetworkInfo networkInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return connectivityManager.isActiveNetworkMetered();
+        }
+        int type = networkInfo.getType();
+        return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    /**
+     * @return false if the default network's radio is known to be idle, so that sending now
+     *         would wake it up. Always true before API level 21, which can't tell.
+     */
+    boolean isRadioActive() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !permitted) {
+            return true;
+        }
+        try {
+            return connectivityManager.isDefaultNetworkActive();
+        } catch (Exception e) {
+            Log.w(TAG, "isDefaultNetworkActive failed", e);
+            return true;
+        }
+    }
+
+    /**
+     * Run callback the next time the default network's radio becomes active, replacing any
+     * callback already waiting. Does nothing before API level 21.
+     */
+    synchronized void runWhenRadioActive(final Runnable callback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || !permitted) {
+            return;
+        }
+        cancelRadioActive();
+        networkActiveListener = new ConnectivityManager.OnNetworkActiveListener() {
+            @Override
+            public void onNetworkActive() {
+                cancelRadioActive();
+                callback.run();
+            }
+        };
+        try {
+            connectivityManager.addDefaultNetworkActiveListener(networkActiveListener);
+        } catch (Exception e) {
+            Log.w(TAG, "addDefaultNetworkActiveListener failed", e);
+            networkActiveListener = null;
+        }
+    }
+
+    synchronized void cancelRadioActive() {
+        if (networkActiveListener == null) {
+            return;
+        }
+        try {
+            connectivityManager.removeDefaultNetworkActiveListener(networkActiveListener);
+        } catch (Exception e) {
+            Log.w(TAG, "removeDefaultNetworkActiveListener failed", e);
+        }
+        networkActiveListener = null;
+    }
+
+    /**
+     * Run callback whenever the network state changes. Call stop to unregister.
+     */
+    synchronized void start(final Runnable callback) {
+        if (receiver != null || !permitted) {
+            return;
+        }
+        receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                callback.run();
+            }
+        };
+        context.registerReceiver(receiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    synchronized void stop() {
+        cancelRadioActive();
+        if (receiver != null) {
+            context.unregisterReceiver(receiver);
+            receiver = null;
+        }
+    }
+}
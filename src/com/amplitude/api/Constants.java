@@ -12,16 +12,39 @@ public class Constants {
 
     public static final int API_VERSION = 2;
 
+    public static final int HTTP_MAX_IDLE_CONNECTIONS = 1;
+    public static final long HTTP_KEEP_ALIVE_DURATION_MILLIS = 5 * 60 * 1000; // 5m
+    public static final long HTTP_CONNECT_TIMEOUT_MILLIS = 15 * 1000; // 15s
+    public static final long HTTP_READ_TIMEOUT_MILLIS = 30 * 1000; // 30s
+
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 2;
+    public static final int DATABASE_VERSION = 4;
 
     public static final int EVENT_UPLOAD_THRESHOLD = 30;
     public static final int EVENT_UPLOAD_MAX_BATCH_SIZE = 100;
+    public static final int EVENT_UPLOAD_CONCURRENCY = 1;
+    public static final int EVENT_UPLOAD_ADAPTIVE_MAX_BATCH_SIZE = 1000;
+    public static final int EVENT_UPLOAD_BATCH_SIZE_INCREMENT = 50;
+    public static final long EVENT_UPLOAD_MAX_BATCH_BYTES = 512 * 1024; // 512KB
+    public static final long EVENT_UPLOAD_TARGET_LATENCY_MILLIS = 3 * 1000; // 3s
+    public static final long UPLOAD_RETRY_BASE_DELAY_MILLIS = 5 * 1000; // 5s
+    public static final long UPLOAD_RETRY_MAX_DELAY_MILLIS = 15 * 60 * 1000; // 15m
+    public static final long UPLOAD_RADIO_MAX_WAIT_MILLIS = 5 * 60 * 1000; // 5m
+    public static final int METERED_UPLOAD_BACKLOG = 500;
+    public static final long BACKGROUND_FLUSH_DELAY_MILLIS = 1000; // 1s
+    public static final long BACKGROUND_FLUSH_TIME_BUDGET_MILLIS = 5 * 1000; // 5s
+    public static final int BACKGROUND_FLUSH_MAX_BATCH_SIZE = 1000;
     public static final int EVENT_MAX_COUNT = 1000;
     public static final int EVENT_REMOVE_BATCH_SIZE = 20;
+    public static final int EVENT_QUARANTINE_MAX_COUNT = 10;
+    public static final int EVENT_SEGMENT_SIZE = 1024 * 1024; // 1MB
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
+    public static final int EVENT_INGEST_BATCH_SIZE = 1; // 1 disables group commit
+    public static final long EVENT_INGEST_MAX_LATENCY_MILLIS = 0;
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
+    public static final long SESSION_STATE_PERSIST_DELAY_MILLIS = 1000; // 1s
+    public static final long INITIALIZATION_TIMEOUT_MILLIS = 5 * 1000; // 5s
 
     public static final String SHARED_PREFERENCES_NAME_PREFIX = PACKAGE_NAME;
     public static final String PREFKEY_LAST_EVENT_ID = PACKAGE_NAME + ".lastEventId";
@@ -1,6 +1,9 @@
 package com.amplitude.api;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.DataFormatException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -14,10 +17,11 @@ import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 import android.util.Pair;
 
-class DatabaseHelper extends SQLiteOpenHelper {
+class DatabaseHelper extends SQLiteOpenHelper implements EventStore {
 
     static DatabaseHelper instance;
     private static final String TAG = "com.amplitude.api.DatabaseHelper";
@@ -28,16 +32,54 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private static final String EVENT_TABLE_NAME = "events";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String PRIORITY_FIELD = "priority";
+    private static final String SIZE_FIELD = "size";
+    private static final String PRIORITY_INDEX_NAME = "events_priority";
+    private static final String QUARANTINE_TABLE_NAME = "quarantined_events";
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
             + VALUE_FIELD + " TEXT);";
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + PRIORITY_FIELD + " INTEGER NOT NULL DEFAULT 0, "
+            + SIZE_FIELD + " INTEGER NOT NULL DEFAULT 0);";
+    private static final String ADD_PRIORITY_FIELD = "ALTER TABLE " + EVENT_TABLE_NAME
+            + " ADD COLUMN " + PRIORITY_FIELD + " INTEGER NOT NULL DEFAULT 0;";
+    // size is the UTF-8 length of the event JSON, 0 if unknown
+    private static final String ADD_SIZE_FIELD = "ALTER TABLE " + EVENT_TABLE_NAME
+            + " ADD COLUMN " + SIZE_FIELD + " INTEGER NOT NULL DEFAULT 0;";
+    private static final String SET_TEXT_EVENT_SIZES = "UPDATE " + EVENT_TABLE_NAME
+            + " SET " + SIZE_FIELD + " = LENGTH(CAST(" + EVENT_FIELD + " AS BLOB))"
+            + " WHERE TYPEOF(" + EVENT_FIELD + ") = 'text';";
+    private static final String CREATE_QUARANTINE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + QUARANTINE_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY, "
+            + EVENT_FIELD + " TEXT, " + SIZE_FIELD + " INTEGER NOT NULL DEFAULT 0);";
+    private static final String CREATE_PRIORITY_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + PRIORITY_INDEX_NAME + " ON " + EVENT_TABLE_NAME
+            + " (" + PRIORITY_FIELD + ", " + ID_FIELD + ");";
 
     private File file;
 
+    // When true the underlying SQLiteDatabase is opened once and kept open across calls
+    // instead of being opened and closed around every read and write.
+    private boolean persistentConnection = true;
+
+    // Authoritative in-memory copy of the ids in the events table, loaded on first use so
+    // the count and nth id lookups on every saveEvent don't need to scan the table.
+    private EventIdIndex eventIdIndex;
+
+    // The events table is a bounded queue: once it holds eventCapacity events, inserts make
+    // room according to overflowPolicy. A capacity of 0 or less leaves the table unbounded.
+    private int eventCapacity = Constants.EVENT_MAX_COUNT;
+    private int overflowPolicy = AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST;
+    private int evictionBatchSize = Constants.EVENT_REMOVE_BATCH_SIZE;
+
+    // When set, new events are stored as deflated BLOBs instead of JSON text. Reads tell
+    // the two formats apart by column type, so the setting can change at any time.
+    private boolean compressEvents = false;
+    private EventCompression eventCompression;
+
     static synchronized DatabaseHelper getDatabaseHelper(Context context) {
         if (instance == null) {
             instance = new DatabaseHelper(context.getApplicationContext());
@@ -57,6 +99,23 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // for the field will be monotonically increasing and unique over the
         // lifetime of the table, even if rows get removed
         db.execSQL(CREATE_EVENTS_TABLE);
+        db.execSQL(CREATE_PRIORITY_INDEX);
+        db.execSQL(CREATE_QUARANTINE_TABLE);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // WAL lets the long-lived connection read while a write is in progress and
+        // replaces the rollback journal rewrite on every commit with an append
+        if (persistentConnection && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && !db.isReadOnly()) {
+            try {
+                db.enableWriteAheadLogging();
+            } catch (SQLiteException e) {
+                Log.w(TAG, "enableWriteAheadLogging failed", e);
+            }
+        }
     }
 
     @Override
@@ -65,8 +124,20 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
             case 1:
                 db.execSQL(CREATE_STORE_TABLE);
+                if (newVersion <= 2) break;
 
             case 2:
+                db.execSQL(ADD_PRIORITY_FIELD);
+                db.execSQL(CREATE_PRIORITY_INDEX);
+                if (newVersion <= 3) break;
+
+            case 3:
+                db.execSQL(ADD_SIZE_FIELD);
+                db.execSQL(SET_TEXT_EVENT_SIZES);
+                db.execSQL(CREATE_QUARANTINE_TABLE);
+                if (newVersion <= 4) break;
+
+            case 4:
                 break;
 
             default:
@@ -76,12 +147,15 @@ class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void resetDatabase(SQLiteDatabase db) {
+        eventIdIndex = null;
         db.execSQL("DROP TABLE IF EXISTS " + STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + QUARANTINE_TABLE_NAME);
         onCreate(db);
     }
 
-    synchronized long insertOrReplaceKeyValue(String key, String value) {
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
@@ -102,32 +176,92 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // Not much we can do, just start fresh
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
         return result;
     }
 
     synchronized long addEvent(String event) {
+        return addEvent(event, 0);
+    }
+
+    /**
+     * Insert an event, evicting stored events first if the queue is at capacity.
+     * Returns -1 if the insert failed or the overflow policy dropped the new event.
+     */
+    @Override
+    public synchronized long addEvent(String event, int priority) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
+            if (!makeRoomForEvent(db, priority)) {
+                return result;
+            }
             ContentValues contentValues = new ContentValues();
-            contentValues.put(EVENT_FIELD, event);
+            putEvent(contentValues, event);
+            contentValues.put(PRIORITY_FIELD, priority);
             result = db.insert(EVENT_TABLE_NAME, null, contentValues);
             if (result == -1) {
                 Log.w(TAG, "Insert failed");
+            } else if (eventIdIndex != null) {
+                eventIdIndex.add(result);
             }
         } catch (SQLiteException e) {
             Log.e(TAG, "addEvent failed", e);
             // Not much we can do, just start fresh
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
         return result;
     }
 
-    synchronized String getValue(String key) {
+    /**
+     * Insert a batch of events in a single transaction so the whole batch costs one journal
+     * commit. Returns the id of the last inserted event, or -1 if nothing was inserted.
+     */
+    @Override
+    public synchronized long addEvents(List<Pair<String, Integer>> events) {
+        long result = -1;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                ContentValues contentValues = new ContentValues();
+                for (Pair<String, Integer> event : events) {
+                    if (!makeRoomForEvent(db, event.second)) {
+                        continue;
+                    }
+                    putEvent(contentValues, event.first);
+                    contentValues.put(PRIORITY_FIELD, event.second);
+                    long eventId = db.insert(EVENT_TABLE_NAME, null, contentValues);
+                    if (eventId == -1) {
+                        Log.w(TAG, "Insert failed");
+                    } else {
+                        if (eventIdIndex != null) {
+                            eventIdIndex.add(eventId);
+                        }
+                        result = eventId;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                // a transaction only rolls back on an exception, which resets the index below
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "addEvents failed", e);
+            // Not much we can do, just start fresh
+            delete();
+            result = -1;
+        } finally {
+            releaseConnection();
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
         String value = null;
         Cursor cursor = null;
         try {
@@ -148,7 +282,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
         }
         return value;
     }
@@ -165,13 +299,16 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
             while (cursor.moveToNext()) {
                 long eventId = cursor.getLong(0);
-                String event = cursor.getString(1);
+                String event = readEvent(cursor, 1);
+                maxId = eventId;
+                if (event == null) {
+                    // unreadable, still covered by maxId so the upload removes it
+                    continue;
+                }
 
                 JSONObject obj = new JSONObject(event);
                 obj.put("event_id", eventId);
                 events.put(obj);
-
-                maxId = eventId;
             }
         } catch (SQLiteException e) {
             Log.e(TAG, "getEvents failed", e);
@@ -179,16 +316,82 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
         }
         return new Pair<Long, JSONArray>(maxId, events);
     }
 
-    synchronized long getEventCount() {
+    @Override
+    public synchronized long readEvents(long afterId, long upToId, int limit, long maxBytes,
+            EventVisitor visitor) throws IOException {
+        long maxId = -1;
+        Cursor cursor = null;
+        try {
+            String selection = ID_FIELD + " > " + afterId;
+            if (upToId >= 0) {
+                selection += " AND " + ID_FIELD + " <= " + upToId;
+            }
+            if (maxBytes >= 0) {
+                String batchSelection = selection;
+                if (limit >= 0) {
+                    batchSelection = ID_FIELD + " IN (SELECT " + ID_FIELD + " FROM "
+                            + EVENT_TABLE_NAME + " WHERE " + selection + " ORDER BY " + ID_FIELD
+                            + " ASC LIMIT " + limit + ")";
+                }
+                while (quarantineEvents(batchSelection, maxBytes) > 0) {
+                    // removing events pulls later ones into the batch, check those too
+                }
+            }
+
+            SQLiteDatabase db = getReadableDatabase();
+            cursor = db.query(EVENT_TABLE_NAME, new String[] { ID_FIELD, SIZE_FIELD, EVENT_FIELD },
+                    selection, null, null, null, ID_FIELD + " ASC",
+                    limit >= 0 ? "" + limit : null);
+
+            long bytes = 0;
+            while (cursor.moveToNext()) {
+                long eventId = cursor.getLong(0);
+                long size = cursor.getLong(1);
+                // the size is checked before the event is read, but rows from before the
+                // size column was added only know theirs once read
+                if (maxBytes >= 0 && maxId >= 0 && size > 0 && bytes + size > maxBytes) {
+                    break;
+                }
+                String event = readEvent(cursor, 2);
+                if (event != null && size <= 0) {
+                    size = JsonEventBatch.utf8Length(event);
+                    if (maxBytes >= 0 && maxId >= 0 && bytes + size > maxBytes) {
+                        break;
+                    }
+                }
+                maxId = eventId;
+                bytes += size;
+                if (event != null) {
+                    visitor.visitEvent(eventId, event);
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "readEvents failed", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseConnection();
+        }
+        return maxId;
+    }
+
+    @Override
+    public synchronized long getEventCount() {
         long numberRows = 0;
         SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
+            EventIdIndex index = getEventIdIndex(db);
+            if (index != null) {
+                return index.size();
+            }
+
             String query = "SELECT COUNT(*) FROM " + EVENT_TABLE_NAME;
             statement = db.compileStatement(query);
             numberRows = statement.simpleQueryForLong();
@@ -198,7 +401,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            releaseConnection();
         }
         return numberRows;
     }
@@ -208,6 +411,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
         SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
+            EventIdIndex index = getEventIdIndex(db);
+            if (index != null) {
+                return index.getNth(n);
+            }
+
             String query = "SELECT " + ID_FIELD + " FROM " + EVENT_TABLE_NAME + " LIMIT 1 OFFSET "
                     + (n - 1);
             statement = db.compileStatement(query);
@@ -223,37 +431,299 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            releaseConnection();
         }
         return nthEventId;
     }
 
-    synchronized void removeEvents(long maxId) {
+    @Override
+    public synchronized void removeEvents(long maxId) {
         try {
             SQLiteDatabase db = getWritableDatabase();
             db.delete(EVENT_TABLE_NAME, ID_FIELD + " <= " + maxId, null);
+            if (eventIdIndex != null) {
+                eventIdIndex.removeUpTo(maxId);
+            }
         } catch (SQLiteException e) {
             Log.e(TAG, "removeEvents failed", e);
         } finally {
-            close();
+            releaseConnection();
         }
     }
 
-    synchronized void removeEvent(long id) {
+    @Override
+    public synchronized void removeEvent(long id) {
         try {
             SQLiteDatabase db = getWritableDatabase();
             db.delete(EVENT_TABLE_NAME, ID_FIELD + " = " + id, null);
+            if (eventIdIndex != null) {
+                eventIdIndex.remove(id);
+            }
         } catch (SQLiteException e) {
             Log.e(TAG, "removeEvent failed", e);
         } finally {
+            releaseConnection();
+        }
+    }
+
+    @Override
+    public synchronized void setEventCapacity(int eventCapacity, int overflowPolicy) {
+        this.eventCapacity = eventCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    synchronized void setEvictionBatchSize(int evictionBatchSize) {
+        this.evictionBatchSize = Math.max(1, evictionBatchSize);
+    }
+
+    /**
+     * Apply the overflow policy if the events table is full. Evictions happen in batches of
+     * evictionBatchSize so that the delete is amortized over that many inserts.
+     *
+     * @return false if the incoming event should be dropped
+     */
+    private boolean makeRoomForEvent(SQLiteDatabase db, int priority) {
+        if (eventCapacity <= 0) {
+            return true;
+        }
+
+        EventIdIndex index = getEventIdIndex(db);
+        if (index == null || index.size() < eventCapacity) {
+            return true;
+        }
+
+        int batchSize = Math.min(evictionBatchSize, index.size());
+        switch (overflowPolicy) {
+            case AmplitudeClient.OVERFLOW_POLICY_DROP_NEWEST:
+                return false;
+
+            case AmplitudeClient.OVERFLOW_POLICY_DROP_LOWEST_PRIORITY:
+                return evictLowestPriority(db, priority, batchSize) > 0;
+
+            default:
+                long maxId = index.getNth(batchSize);
+                db.delete(EVENT_TABLE_NAME, ID_FIELD + " <= " + maxId, null);
+                index.removeUpTo(maxId);
+                return true;
+        }
+    }
+
+    /**
+     * Remove up to batchSize of the lowest priority events, oldest first, that do not
+     * outrank the incoming event. Returns the number of events removed.
+     */
+    private int evictLowestPriority(SQLiteDatabase db, int priority, int batchSize) {
+        StringBuilder ids = new StringBuilder();
+        long[] evicted = new long[batchSize];
+        int count = 0;
+        Cursor cursor = null;
+        try {
+            cursor = db.query(EVENT_TABLE_NAME, new String[] { ID_FIELD },
+                    PRIORITY_FIELD + " <= " + priority, null, null, null,
+                    PRIORITY_FIELD + " ASC, " + ID_FIELD + " ASC", "" + batchSize);
+            while (cursor.moveToNext()) {
+                evicted[count] = cursor.getLong(0);
+                ids.append(count == 0 ? "" : ",").append(evicted[count]);
+                count++;
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        if (count > 0) {
+            db.delete(EVENT_TABLE_NAME, ID_FIELD + " IN (" + ids + ")", null);
+            for (int i = 0; i < count; i++) {
+                eventIdIndex.remove(evicted[i]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Load the ids of all stored events into memory the first time they are needed.
+     * Returns null if the table could not be read, in which case callers fall back to SQL.
+     * Reads through the caller's db and leaves releasing the connection to the caller.
+     */
+    private EventIdIndex getEventIdIndex(SQLiteDatabase db) {
+        if (eventIdIndex != null) {
+            return eventIdIndex;
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = db.query(EVENT_TABLE_NAME, new String[] { ID_FIELD },
+                    null, null, null, null, ID_FIELD + " ASC", null);
+            EventIdIndex index = new EventIdIndex(cursor.getCount());
+            while (cursor.moveToNext()) {
+                index.add(cursor.getLong(0));
+            }
+            eventIdIndex = index;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "getEventIdIndex failed", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return eventIdIndex;
+    }
+
+    synchronized void setPersistentConnection(boolean persistentConnection) {
+        this.persistentConnection = persistentConnection;
+        if (!persistentConnection) {
+            close();
+        }
+    }
+
+    synchronized boolean isPersistentConnection() {
+        return persistentConnection;
+    }
+
+    synchronized void setEventCompression(boolean compressEvents) {
+        if (compressEvents && Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            // Cursor.getType() is needed to tell compressed rows apart when reading
+            Log.w(TAG, "Event compression requires API level 11, storing events as text");
+            compressEvents = false;
+        }
+        this.compressEvents = compressEvents;
+    }
+
+    synchronized boolean isEventCompression() {
+        return compressEvents;
+    }
+
+    private EventCompression getEventCompression() {
+        if (eventCompression == null) {
+            eventCompression = new EventCompression();
+        }
+        return eventCompression;
+    }
+
+    /**
+     * Move the events matching selection that are larger than maxBytes on their own out of
+     * the events table, since no batch within the byte budget can ever carry them. The
+     * most recent Constants.EVENT_QUARANTINE_MAX_COUNT are kept in the quarantine table.
+     * The write transaction is only opened once a read-only check finds such an event, and
+     * the number of events moved is returned.
+     */
+    private int quarantineEvents(String selection, long maxBytes) {
+        String oversized = "(" + selection + ") AND " + SIZE_FIELD + " > " + maxBytes;
+        SQLiteStatement statement = null;
+        try {
+            statement = getReadableDatabase().compileStatement("SELECT EXISTS (SELECT 1 FROM "
+                    + EVENT_TABLE_NAME + " WHERE " + oversized + ")");
+            if (statement.simpleQueryForLong() == 0) {
+                return 0;
+            }
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor cursor = null;
+        int count = 0;
+        db.beginTransaction();
+        try {
+            cursor = db.query(EVENT_TABLE_NAME, new String[] { ID_FIELD, SIZE_FIELD },
+                    oversized, null, null, null, null, null);
+            count = cursor.getCount();
+            if (count > 0) {
+                while (cursor.moveToNext()) {
+                    Log.w(TAG, "Quarantining event " + cursor.getLong(0) + " of "
+                            + cursor.getLong(1) + " bytes, larger than the upload batch limit");
+                    if (eventIdIndex != null) {
+                        eventIdIndex.remove(cursor.getLong(0));
+                    }
+                }
+                db.execSQL("INSERT OR REPLACE INTO " + QUARANTINE_TABLE_NAME + " SELECT "
+                        + ID_FIELD + ", " + EVENT_FIELD + ", " + SIZE_FIELD + " FROM "
+                        + EVENT_TABLE_NAME + " WHERE " + oversized);
+                db.delete(EVENT_TABLE_NAME, oversized, null);
+                db.delete(QUARANTINE_TABLE_NAME, ID_FIELD + " NOT IN (SELECT " + ID_FIELD
+                        + " FROM " + QUARANTINE_TABLE_NAME + " ORDER BY " + ID_FIELD
+                        + " DESC LIMIT " + Constants.EVENT_QUARANTINE_MAX_COUNT + ")", null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    synchronized long getQuarantinedEventCount() {
+        long count = 0;
+        SQLiteStatement statement = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            statement = db.compileStatement("SELECT COUNT(*) FROM " + QUARANTINE_TABLE_NAME);
+            count = statement.simpleQueryForLong();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "getQuarantinedEventCount failed", e);
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+            releaseConnection();
+        }
+        return count;
+    }
+
+    private void putEvent(ContentValues contentValues, String event) {
+        contentValues.put(SIZE_FIELD, JsonEventBatch.utf8Length(event));
+        if (compressEvents) {
+            contentValues.put(EVENT_FIELD, getEventCompression().compress(event));
+        } else {
+            contentValues.put(EVENT_FIELD, event);
+        }
+    }
+
+    private String readEvent(Cursor cursor, int column) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || cursor.getType(column) != Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getString(column);
+        }
+        try {
+            return getEventCompression().decompress(cursor.getBlob(column));
+        } catch (DataFormatException e) {
+            Log.e(TAG, "Failed to inflate stored event", e);
+            return null;
+        }
+    }
+
+    /**
+     * Close the underlying database. With a persistent connection this only happens on
+     * memory trim or shutdown; the next call reopens the database on demand.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            super.close();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "close failed", e);
+        }
+    }
+
+    private void releaseConnection() {
+        if (!persistentConnection) {
             close();
         }
     }
 
     private void delete() {
+        eventIdIndex = null;
         try {
             close();
             file.delete();
+            // remove the write-ahead log and shared memory index along with the database
+            new File(file.getPath() + "-wal").delete();
+            new File(file.getPath() + "-shm").delete();
         } catch (SecurityException e) {
             Log.e(TAG, "delete failed", e);
         }
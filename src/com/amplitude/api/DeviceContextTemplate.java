@@ -0,0 +1,66 @@
+package com.amplitude.api;
+
+/**
+ * The members shared by every event logged on this device: app version, OS, device model,
+ * carrier, country, language, platform and library.
+ *
+ * They are serialized once into a fragment of JSON object members that is copied into each
+ * event, instead of being put into a new JSONObject for every event. Only the carrier,
+ * country and language can change while the process runs, so the fragment is rebuilt when
+ * one of them does.
+ */
+class DeviceContextTemplate {
+
+    private final DeviceInfo deviceInfo;
+
+    private String carrier;
+    private String country;
+    private String language;
+    private String fragment;
+
+    DeviceContextTemplate(DeviceInfo deviceInfo) {
+        this.deviceInfo = deviceInfo;
+    }
+
+    /**
+     * @return the members, without enclosing braces or a trailing comma
+     */
+    synchronized String getFragment() {
+        String carrier = deviceInfo.getCarrier();
+        String country = deviceInfo.getCountry();
+        String language = deviceInfo.getLanguage();
+        if (fragment == null || !equals(carrier, this.carrier)
+                || !equals(country, this.country) || !equals(language, this.language)) {
+            this.carrier = carrier;
+            this.country = country;
+            this.language = language;
+            fragment = build();
+        }
+        return fragment;
+    }
+
+    private String build() {
+        String object = new EventEncoder().beginObject()
+                .name("version_name").value(deviceInfo.getVersionName())
+                .name("os_name").value(deviceInfo.getOsName())
+                .name("os_version").value(deviceInfo.getOsVersion())
+                .name("device_brand").value(deviceInfo.getBrand())
+                .name("device_manufacturer").value(deviceInfo.getManufacturer())
+                .name("device_model").value(deviceInfo.getModel())
+                .name("carrier").value(carrier)
+                .name("country").value(country)
+                .name("language").value(language)
+                .name("platform").value(Constants.PLATFORM)
+                .name("library").beginObject()
+                        .name("name").value(Constants.LIBRARY)
+                        .name("version").value(Constants.VERSION)
+                        .endObject()
+                .endObject().toJson();
+        // drop the braces
+        return object.substring(1, object.length() - 1);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
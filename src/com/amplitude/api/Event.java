@@ -0,0 +1,84 @@
+package com.amplitude.api;
+
+/**
+ * An immutable event for AmplitudeClient.logEvent(Event), the fast path for logging:
+ * <pre>
+ * Amplitude.getInstance().logEvent(new Event.Builder("purchase")
+ *         .setEventProperties(new EventProperties.Builder()
+ *                 .putString("item", "coins")
+ *                 .putLong("quantity", 100)
+ *                 .build())
+ *         .build());
+ * </pre>
+ */
+public final class Event {
+
+    private final String eventType;
+    private final EventProperties eventProperties;
+    private final boolean outOfSession;
+    private final long timestamp;
+
+    private Event(Builder builder) {
+        this.eventType = builder.eventType;
+        this.eventProperties = builder.eventProperties;
+        this.outOfSession = builder.outOfSession;
+        this.timestamp = builder.timestamp;
+    }
+
+    public String getEventType() {
+        return eventType;
+    }
+
+    /**
+     * @return the properties, null if there are none
+     */
+    public EventProperties getEventProperties() {
+        return eventProperties;
+    }
+
+    public boolean isOutOfSession() {
+        return outOfSession;
+    }
+
+    /**
+     * @return the time set with setTimestamp, or -1 to use the time the event is logged
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public static class Builder {
+
+        private final String eventType;
+        private EventProperties eventProperties;
+        private boolean outOfSession = false;
+        private long timestamp = -1;
+
+        public Builder(String eventType) {
+            this.eventType = eventType;
+        }
+
+        public Builder setEventProperties(EventProperties eventProperties) {
+            this.eventProperties = eventProperties;
+            return this;
+        }
+
+        public Builder setOutOfSession(boolean outOfSession) {
+            this.outOfSession = outOfSession;
+            return this;
+        }
+
+        /**
+         * Log the event as having happened at timestamp, in milliseconds since the epoch,
+         * instead of when logEvent is called.
+         */
+        public Builder setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Event build() {
+            return new Event(this);
+        }
+    }
+}
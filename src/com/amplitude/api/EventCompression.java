@@ -0,0 +1,85 @@
+package com.amplitude.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates stored events using a preset dictionary of the keys and constant values that
+ * every event repeats. Most events are a few hundred bytes, too short for deflate to find
+ * much redundancy within a single event, so the dictionary does most of the work.
+ *
+ * Rows written with a dictionary can only be read back with the same bytes. Never edit
+ * DICTIONARY; add a new one and pick it by Inflater.getAdler() when reading instead.
+ * Instances are not thread safe.
+ */
+class EventCompression {
+
+    // zlib makes the strings at the end of the dictionary the cheapest to reference, so
+    // the keys every event carries go last. Literal on purpose, see the class comment.
+    private static final byte[] DICTIONARY = utf8(""
+            + "\"special\":\"revenue_amount\",\"productId\":\"quantity\":\"price\":"
+            + "\"receipt\":\"receiptSig\":\"session_start\"\"session_end\""
+            + "\"location\":{\"lat\":,\"lng\":},\"androidADID\":\""
+            + "\"carrier\":\"\",\"country\":\"\",\"language\":\"en\","
+            + "\"device_brand\":\"\",\"device_manufacturer\":\"\",\"device_model\":\"\","
+            + "\"os_name\":\"android\",\"os_version\":\"\","
+            + "\"version_name\":\"\",\"platform\":\"Android\","
+            + "\"library\":{\"name\":\"amplitude-android\",\"version\":\"2.0.2\"},"
+            + "\"api_properties\":{\"limit_ad_tracking\":false},"
+            + "\"event_properties\":{},\"user_properties\":{}}"
+            + "{\"event_type\":\"\",\"timestamp\":,\"user_id\":null,\"device_id\":\"\","
+            + "\"session_id\":");
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[4096];
+
+    byte[] compress(String event) {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(utf8(event));
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(event.length() / 2);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    String decompress(byte[] compressed) throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(compressed);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        while (!inflater.finished()) {
+            int count = inflater.inflate(buffer);
+            if (count == 0) {
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (inflater.needsInput()) {
+                    throw new DataFormatException("Truncated compressed event");
+                }
+            }
+            out.write(buffer, 0, count);
+        }
+        try {
+            return out.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.amplitude.api;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes JSON straight into a character buffer, one token at a time, so that an event is
+ * serialized without first building it as a tree of JSONObjects. This is the internal
+ * equivalent of android.util.JsonWriter, which needs API level 11.
+ *
+ * org.json is only used as an input: event, user and api properties passed in as
+ * JSONObjects are walked and written into the same buffer rather than serialized to
+ * Strings of their own. Not thread safe.
+ */
+class EventEncoder {
+
+    // buffers grown past this by a huge event are not kept for reuse
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private StringBuilder json = new StringBuilder(1024);
+    // whether each open object or array has no members yet
+    private boolean[] empty = new boolean[16];
+    private int depth = 0;
+    private boolean afterName = false;
+
+    EventEncoder beginObject() {
+        return open('{');
+    }
+
+    EventEncoder endObject() {
+        return close('}');
+    }
+
+    EventEncoder beginArray() {
+        return open('[');
+    }
+
+    EventEncoder endArray() {
+        return close(']');
+    }
+
+    EventEncoder name(String name) {
+        separate();
+        string(name);
+        json.append(':');
+        afterName = true;
+        return this;
+    }
+
+    EventEncoder value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        string(value);
+        return this;
+    }
+
+    EventEncoder value(long value) {
+        beforeValue();
+        json.append(value);
+        return this;
+    }
+
+    /**
+     * @throws JSONException if value is NaN or infinite, like JSONObject.put
+     */
+    EventEncoder value(double value) throws JSONException {
+        String number = JSONObject.numberToString(value);
+        beforeValue();
+        json.append(number);
+        return this;
+    }
+
+    EventEncoder value(boolean value) {
+        beforeValue();
+        json.append(value);
+        return this;
+    }
+
+    EventEncoder nullValue() {
+        beforeValue();
+        json.append("null");
+        return this;
+    }
+
+    /**
+     * Write a value taken from org.json: a JSONObject, a JSONArray, a String, a Number, a
+     * Boolean or JSONObject.NULL. Anything else is written as its string.
+     */
+    EventEncoder value(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            return nullValue();
+        }
+        if (value instanceof JSONObject) {
+            beginObject();
+            members((JSONObject) value);
+            return endObject();
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                value(array.opt(i));
+            }
+            return endArray();
+        }
+        if (value instanceof Number) {
+            String number = JSONObject.numberToString((Number) value);
+            beforeValue();
+            json.append(number);
+            return this;
+        }
+        if (value instanceof Boolean) {
+            return value(((Boolean) value).booleanValue());
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Write every member of object into the object being written.
+     */
+    EventEncoder members(JSONObject object) throws JSONException {
+        if (object == null) {
+            return this;
+        }
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            name(key).value(object.opt(key));
+        }
+        return this;
+    }
+
+    /**
+     * Write the properties as members of the object being written.
+     */
+    EventEncoder members(EventProperties properties) throws JSONException {
+        if (properties != null) {
+            properties.writeMembers(this);
+        }
+        return this;
+    }
+
+    /**
+     * Copy in members that are already serialized, such as a DeviceContextTemplate fragment.
+     */
+    EventEncoder rawMembers(String members) {
+        if (members == null || members.length() == 0) {
+            return this;
+        }
+        separate();
+        json.append(members);
+        return this;
+    }
+
+    /**
+     * @return everything written since the last reset
+     */
+    String toJson() {
+        return json.toString();
+    }
+
+    /**
+     * Start over, keeping the buffer for the next event.
+     */
+    EventEncoder reset() {
+        if (json.capacity() > MAX_RETAINED_CAPACITY) {
+            json = new StringBuilder(1024);
+        } else {
+            json.setLength(0);
+        }
+        depth = 0;
+        afterName = false;
+        return this;
+    }
+
+    private EventEncoder open(char bracket) {
+        beforeValue();
+        if (depth == empty.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(empty, 0, grown, 0, depth);
+            empty = grown;
+        }
+        empty[depth++] = true;
+        json.append(bracket);
+        return this;
+    }
+
+    private EventEncoder close(char bracket) {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing open to close with " + bracket);
+        }
+        depth--;
+        json.append(bracket);
+        return this;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        separate();
+    }
+
+    private void separate() {
+        if (depth == 0) {
+            return;
+        }
+        if (!empty[depth - 1]) {
+            json.append(',');
+        }
+        empty[depth - 1] = false;
+    }
+
+    private void string(String value) {
+        json.append('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    json.append('\\').append(c);
+                    break;
+                case '\b':
+                    json.append("\\b");
+                    break;
+                case '\f':
+                    json.append("\\f");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c <= 0x1F || c == '\u2028' || c == '\u2029') {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                    break;
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,143 @@
+package com.amplitude.api;
+
+import java.util.Arrays;
+
+/**
+ * Sorted in-memory index of the event ids stored in the events table.
+ *
+ * Event ids are generated by AUTOINCREMENT so new ids are always appended at the tail,
+ * and uploads remove a prefix of the queue. Both operations are amortized O(1), as are
+ * the size and nth id lookups used on every saveEvent. Not thread safe, callers are
+ * expected to synchronize.
+ */
+class EventIdIndex {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] ids;
+    private int head = 0;
+    private int tail = 0;
+
+    EventIdIndex() {
+        this(INITIAL_CAPACITY);
+    }
+
+    EventIdIndex(int capacity) {
+        ids = new long[Math.max(capacity, INITIAL_CAPACITY)];
+    }
+
+    int size() {
+        return tail - head;
+    }
+
+    /**
+     * @return the nth (1-based) smallest id, the first id for n <= 0, or -1 if there are
+     *         fewer than n ids
+     */
+    long getNth(long n) {
+        if (n <= 0) {
+            n = 1;
+        }
+        if (n > size()) {
+            return -1;
+        }
+        return ids[head + (int) n - 1];
+    }
+
+    long first() {
+        return size() == 0 ? -1 : ids[head];
+    }
+
+    long last() {
+        return size() == 0 ? -1 : ids[tail - 1];
+    }
+
+    void add(long id) {
+        if (size() > 0 && id <= ids[tail - 1]) {
+            // out of order insert, should not happen with AUTOINCREMENT ids
+            insertSorted(id);
+            return;
+        }
+        ensureCapacity();
+        ids[tail++] = id;
+    }
+
+    /**
+     * Remove all ids less than or equal to maxId.
+     * @return the number of ids removed
+     */
+    int removeUpTo(long maxId) {
+        int index = upperBound(maxId);
+        int removed = index - head;
+        head = index;
+        if (head == tail) {
+            head = tail = 0;
+        }
+        return removed;
+    }
+
+    boolean remove(long id) {
+        int index = Arrays.binarySearch(ids, head, tail, id);
+        if (index < 0) {
+            return false;
+        }
+        if (index == head) {
+            head++;
+        } else {
+            System.arraycopy(ids, index + 1, ids, index, tail - index - 1);
+            tail--;
+        }
+        if (head == tail) {
+            head = tail = 0;
+        }
+        return true;
+    }
+
+    void clear() {
+        head = tail = 0;
+    }
+
+    // index of the first id greater than value
+    private int upperBound(long value) {
+        int low = head;
+        int high = tail;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insertSorted(long id) {
+        ensureCapacity();
+        int index = Arrays.binarySearch(ids, head, tail, id);
+        if (index >= 0) {
+            return;
+        }
+        index = -(index + 1);
+        System.arraycopy(ids, index, ids, index + 1, tail - index);
+        ids[index] = id;
+        tail++;
+    }
+
+    private void ensureCapacity() {
+        if (tail < ids.length) {
+            return;
+        }
+        int size = size();
+        if (head > 0 && size < ids.length / 2) {
+            // reclaim the space left behind by removed prefixes
+            System.arraycopy(ids, head, ids, 0, size);
+        } else {
+            long[] grown = new long[ids.length * 2];
+            System.arraycopy(ids, head, grown, 0, size);
+            ids = grown;
+        }
+        head = 0;
+        tail = size;
+    }
+}
@@ -0,0 +1,214 @@
+package com.amplitude.api;
+
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * An immutable set of event properties. Numbers and booleans are stored as primitives, so
+ * building properties doesn't box them the way JSONObject does, and since nothing can
+ * change them they are handed to the log thread as they are, without a defensive copy.
+ *
+ * Create one with a Builder:
+ * <pre>
+ * EventProperties properties = new EventProperties.Builder()
+ *         .putString("button", "buy")
+ *         .putLong("quantity", 2)
+ *         .putDouble("price", 3.99)
+ *         .build();
+ * </pre>
+ */
+public final class EventProperties {
+
+    public static final String TAG = "com.amplitude.api.EventProperties";
+
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_BOOLEAN = 3;
+    // a value taken from a JSONObject as is: a nested object or array, null, or another number
+    private static final byte TYPE_JSON = 4;
+
+    private final int size;
+    private final String[] names;
+    private final byte[] types;
+    // longs, doubles as their raw bits and booleans as 0 or 1
+    private final long[] numbers;
+    // strings and JSON values
+    private final Object[] objects;
+
+    private EventProperties(int size, String[] names, byte[] types, long[] numbers,
+            Object[] objects) {
+        this.size = size;
+        this.names = names;
+        this.types = types;
+        this.numbers = numbers;
+        this.objects = objects;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Shallow copy of a JSONObject, for the logEvent overloads that take one. Nested objects
+     * and arrays are shared, as with the copy that used to be made of the JSONObject.
+     */
+    static EventProperties fromJSONObject(JSONObject object) {
+        if (object == null) {
+            return null;
+        }
+        Builder builder = new Builder();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = object.opt(key);
+            if (value instanceof String) {
+                builder.putString(key, (String) value);
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                builder.putLong(key, ((Number) value).longValue());
+            } else if (value instanceof Double) {
+                builder.putDouble(key, (Double) value);
+            } else if (value instanceof Boolean) {
+                builder.putBoolean(key, (Boolean) value);
+            } else {
+                builder.put(key, TYPE_JSON, 0, value);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Write the properties as members of the object being encoded.
+     */
+    void writeMembers(EventEncoder encoder) throws JSONException {
+        for (int i = 0; i < size; i++) {
+            encoder.name(names[i]);
+            switch (types[i]) {
+                case TYPE_STRING:
+                    encoder.value((String) objects[i]);
+                    break;
+                case TYPE_LONG:
+                    encoder.value(numbers[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    encoder.value(Double.longBitsToDouble(numbers[i]));
+                    break;
+                case TYPE_BOOLEAN:
+                    encoder.value(numbers[i] != 0);
+                    break;
+                default:
+                    encoder.value(objects[i]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Collects properties for an EventProperties. Putting a name again replaces its value.
+     * After build the builder starts over empty, so it can be used for the next event.
+     */
+    public static class Builder {
+
+        private static final int INITIAL_CAPACITY = 8;
+
+        private int size;
+        private String[] names;
+        private byte[] types;
+        private long[] numbers;
+        private Object[] objects;
+
+        public Builder() {
+            clear();
+        }
+
+        public Builder putString(String name, String value) {
+            return put(name, TYPE_STRING, 0, value);
+        }
+
+        public Builder putLong(String name, long value) {
+            return put(name, TYPE_LONG, value, null);
+        }
+
+        /**
+         * @param value must be finite, JSON has no NaN or infinity
+         */
+        public Builder putDouble(String name, double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                Log.e(TAG, "Property " + name + " must be a finite number, not " + value);
+                return this;
+            }
+            return put(name, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+        }
+
+        public Builder putBoolean(String name, boolean value) {
+            return put(name, TYPE_BOOLEAN, value ? 1 : 0, null);
+        }
+
+        /**
+         * Hand the properties put so far to a new EventProperties, without copying them.
+         */
+        public EventProperties build() {
+            EventProperties properties =
+                    new EventProperties(size, names, types, numbers, objects);
+            clear();
+            return properties;
+        }
+
+        private Builder put(String name, byte type, long number, Object object) {
+            if (name == null) {
+                Log.e(TAG, "Property name cannot be null");
+                return this;
+            }
+            int index = indexOf(name);
+            if (index < 0) {
+                if (size == names.length) {
+                    grow();
+                }
+                index = size++;
+                names[index] = name;
+            }
+            types[index] = type;
+            numbers[index] = number;
+            objects[index] = object;
+            return this;
+        }
+
+        private int indexOf(String name) {
+            for (int i = 0; i < size; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void grow() {
+            int capacity = names.length * 2;
+            String[] grownNames = new String[capacity];
+            byte[] grownTypes = new byte[capacity];
+            long[] grownNumbers = new long[capacity];
+            Object[] grownObjects = new Object[capacity];
+            System.arraycopy(names, 0, grownNames, 0, size);
+            System.arraycopy(types, 0, grownTypes, 0, size);
+            System.arraycopy(numbers, 0, grownNumbers, 0, size);
+            System.arraycopy(objects, 0, grownObjects, 0, size);
+            names = grownNames;
+            types = grownTypes;
+            numbers = grownNumbers;
+            objects = grownObjects;
+        }
+
+        private void clear() {
+            size = 0;
+            names = new String[INITIAL_CAPACITY];
+            types = new byte[INITIAL_CAPACITY];
+            numbers = new long[INITIAL_CAPACITY];
+            objects = new Object[INITIAL_CAPACITY];
+        }
+    }
+}
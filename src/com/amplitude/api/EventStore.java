@@ -0,0 +1,72 @@
+package com.amplitude.api;
+
+import java.io.IOException;
+import java.util.List;
+
+import android.util.Pair;
+
+/**
+ * Storage for events waiting to be uploaded, plus a small key value store.
+ *
+ * Events are assigned monotonically increasing ids when they are appended. Uploads read a
+ * batch in id order and acknowledge it by removing every event up to the batch's max id.
+ * The default implementation is the SQLite backed DatabaseHelper; InMemoryEventStore keeps
+ * everything on the heap. A custom store can be set with AmplitudeClient.setEventStore.
+ * All methods are called from the client's worker threads and must be thread safe.
+ */
+public interface EventStore {
+
+    /**
+     * Receives stored events, as the JSON strings they were added with, from readEvents.
+     */
+    interface EventVisitor {
+        void visitEvent(long eventId, String event) throws IOException;
+    }
+
+    /**
+     * Append an event. Returns its id, or -1 if the event was not stored.
+     */
+    long addEvent(String event, int priority);
+
+    /**
+     * Append a batch of (event, priority) pairs, ideally atomically.
+     * Returns the id of the last stored event, or -1 if nothing was stored.
+     */
+    long addEvents(List<Pair<String, Integer>> events);
+
+    /**
+     * Pass up to limit events with afterId < id <= upToId to visitor in id order, without
+     * parsing them. Stops before the event that would take the UTF-8 size of the events
+     * visited past maxBytes, though the first event is always visited. An event in the range
+     * that is larger than maxBytes on its own is quarantined instead: it is taken out of the
+     * queue without being visited, since no batch within the budget could carry it. A
+     * negative afterId, upToId, limit or maxBytes means no bound. Returns the max id
+     * visited, or -1 if none. Exceptions thrown by the visitor are passed through.
+     */
+    long readEvents(long afterId, long upToId, int limit, long maxBytes, EventVisitor visitor)
+            throws IOException;
+
+    long getEventCount();
+
+    /**
+     * Acknowledge every event with id <= maxId.
+     */
+    void removeEvents(long maxId);
+
+    void removeEvent(long id);
+
+    /**
+     * Bound the number of stored events. See AmplitudeClient.setEventOverflowPolicy.
+     */
+    void setEventCapacity(int eventCapacity, int overflowPolicy);
+
+    long insertOrReplaceKeyValue(String key, String value);
+
+    String getValue(String key);
+
+    /**
+     * Release any resources held by the store, for example on memory trim. The store must
+     * reopen them on the next call.
+     */
+    void close();
+}
@@ -0,0 +1,178 @@
+package com.amplitude.api;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amplitude.security.MD5;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import android.util.Log;
+import okio.BufferedSink;
+
+/**
+ * Form encoded upload request that streams a batch of events from an EventStore into the
+ * request as it is sent, instead of building the batch, the checksum preimage and the
+ * encoded form as separate strings. Events are read from the store a page at a time so
+ * the store is never locked while the network write blocks, and the URL encoding and MD5
+ * checksum are computed over each page as it goes out. Peak memory is one page of events
+ * regardless of the batch size.
+ *
+ * The produced body is byte for byte what FormEncodingBuilder produces for the same batch.
+ */
+class EventUploadRequestBody extends RequestBody {
+
+    private static final String TAG = "com.amplitude.api.EventUploadRequestBody";
+
+    private static final MediaType CONTENT_TYPE =
+            MediaType.parse("application/x-www-form-urlencoded");
+    private static final int PAGE_SIZE = 20;
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+    private static final byte[] HEX_DIGITS_UPPER = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+    private static class Page implements EventStore.EventVisitor {
+        final List<Long> ids = new ArrayList<Long>(PAGE_SIZE);
+        final List<String> events = new ArrayList<String>(PAGE_SIZE);
+
+        @Override
+        public void visitEvent(long eventId, String event) {
+            ids.add(eventId);
+            events.add(event);
+        }
+
+        void clear() {
+            ids.clear();
+            events.clear();
+        }
+    }
+
+    private final EventStore store;
+    private final String apiKey;
+    private final String apiVersion;
+    private final String uploadTime;
+    private final long afterId;
+    private final long maxId;
+
+    /**
+     * Upload the stored events with afterId < id <= maxId. The bounds are fixed up front so
+     * that a request OkHttp retries sends the same events again.
+     */
+    EventUploadRequestBody(EventStore store, String apiKey, long afterId, long maxId) {
+        this.store = store;
+        this.apiKey = apiKey;
+        this.apiVersion = "" + Constants.API_VERSION;
+        this.uploadTime = "" + System.currentTimeMillis();
+        this.afterId = afterId;
+        this.maxId = maxId;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return CONTENT_TYPE;
+    }
+
+    long getMaxId() {
+        return maxId;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        MessageDigest checksum = new MD5();
+
+        writeField(sink, "v", apiVersion, checksum);
+        sink.writeByte('&');
+        writeField(sink, "client", apiKey, checksum);
+        sink.writeByte('&');
+        sink.writeUtf8("e=");
+        writeEvents(sink, checksum);
+        sink.writeByte('&');
+        writeField(sink, "upload_time", uploadTime, checksum);
+        sink.writeByte('&');
+        sink.writeUtf8("checksum=");
+        writeHex(sink, checksum.digest());
+    }
+
+    private void writeEvents(BufferedSink sink, MessageDigest checksum) throws IOException {
+        write(sink, "[", checksum);
+
+        Page page = new Page();
+        long pageAfterId = afterId;
+        boolean first = true;
+        // an empty batch has maxId == afterId, and a negative maxId would mean no bound
+        while (pageAfterId < maxId) {
+            page.clear();
+            long pageMaxId = store.readEvents(pageAfterId, maxId, PAGE_SIZE, -1, page);
+            if (pageMaxId < 0) {
+                break;
+            }
+            pageAfterId = pageMaxId;
+
+            for (int i = 0; i < page.ids.size(); i++) {
+                String event = page.events.get(i);
+                int bodyStart = JsonEventBatch.bodyStart(event);
+                if (bodyStart < 0) {
+                    Log.w(TAG, "Dropping malformed event " + page.ids.get(i));
+                    continue;
+                }
+                write(sink, first ? "{\"event_id\":" : ",{\"event_id\":", checksum);
+                write(sink, page.ids.get(i).toString(), checksum);
+                if (JsonEventBatch.hasMembers(event, bodyStart)) {
+                    write(sink, ",", checksum);
+                }
+                write(sink, event.substring(bodyStart), checksum);
+                first = false;
+            }
+        }
+
+        write(sink, "]", checksum);
+    }
+
+    private static void writeField(BufferedSink sink, String name, String value,
+            MessageDigest checksum) throws IOException {
+        sink.writeUtf8(name).writeByte('=');
+        write(sink, value, checksum);
+    }
+
+    /**
+     * Write value URL encoded the way java.net.URLEncoder does, and add its UTF-8 bytes to
+     * the checksum.
+     */
+    private static void write(BufferedSink sink, String value, MessageDigest checksum)
+            throws IOException {
+        byte[] bytes = utf8(value);
+        checksum.update(bytes);
+        for (byte b : bytes) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '.' || b == '-' || b == '*' || b == '_') {
+                sink.writeByte(b);
+            } else if (b == ' ') {
+                sink.writeByte('+');
+            } else {
+                sink.writeByte('%');
+                sink.writeByte(HEX_DIGITS_UPPER[(b >> 4) & 0x0F]);
+                sink.writeByte(HEX_DIGITS_UPPER[b & 0x0F]);
+            }
+        }
+    }
+
+    private static void writeHex(BufferedSink sink, byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            sink.writeByte(HEX_DIGITS[(b >> 4) & 0x0F]);
+            sink.writeByte(HEX_DIGITS[b & 0x0F]);
+        }
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new AssertionError(e);
+        }
+    }
+}
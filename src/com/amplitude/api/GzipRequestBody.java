@@ -0,0 +1,36 @@
+package com.amplitude.api;
+
+import java.io.IOException;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips another request body as it is written. The request must carry a
+ * "Content-Encoding: gzip" header. The compressed length is not known up front, so the
+ * request is sent with chunked transfer encoding.
+ */
+class GzipRequestBody extends RequestBody {
+
+    private final RequestBody body;
+
+    GzipRequestBody(RequestBody body) {
+        this.body = body;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        body.writeTo(gzipSink);
+        gzipSink.close();
+    }
+}
@@ -0,0 +1,173 @@
+package com.amplitude.api;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import android.util.Log;
+import android.util.Pair;
+
+/**
+ * EventStore that keeps events and key value pairs on the heap. Nothing survives the
+ * process, so this is meant for benchmarking and tests, or for apps that would rather
+ * lose unsent events than touch disk.
+ */
+public class InMemoryEventStore implements EventStore {
+
+    private static final String TAG = "com.amplitude.api.InMemoryEventStore";
+
+    private final TreeMap<Long, Pair<String, Integer>> events =
+            new TreeMap<Long, Pair<String, Integer>>();
+    private final Map<String, String> store = new HashMap<String, String>();
+    private long nextEventId = 1;
+
+    private int eventCapacity = Constants.EVENT_MAX_COUNT;
+    private int overflowPolicy = AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST;
+    private int evictionBatchSize = Constants.EVENT_REMOVE_BATCH_SIZE;
+
+    @Override
+    public synchronized long addEvent(String event, int priority) {
+        if (!makeRoomForEvent(priority)) {
+            return -1;
+        }
+        long eventId = nextEventId++;
+        events.put(eventId, new Pair<String, Integer>(event, priority));
+        return eventId;
+    }
+
+    @Override
+    public synchronized long addEvents(List<Pair<String, Integer>> events) {
+        long result = -1;
+        for (Pair<String, Integer> event : events) {
+            long eventId = addEvent(event.first, event.second);
+            if (eventId != -1) {
+                result = eventId;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized long readEvents(long afterId, long upToId, int limit, long maxBytes,
+            EventVisitor visitor) throws IOException {
+        long maxId = -1;
+        NavigableMap<Long, Pair<String, Integer>> range = events.tailMap(afterId, false);
+        if (upToId >= 0) {
+            range = range.headMap(upToId, true);
+        }
+        int count = 0;
+        long bytes = 0;
+        Iterator<Map.Entry<Long, Pair<String, Integer>>> iterator = range.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Pair<String, Integer>> entry = iterator.next();
+            int size = JsonEventBatch.utf8Length(entry.getValue().first);
+            if (maxBytes >= 0 && size > maxBytes) {
+                // nothing is kept on disk to quarantine it in, so just drop it
+                Log.w(TAG, "Dropping event " + entry.getKey() + " of " + size
+                        + " bytes, larger than the upload batch limit");
+                iterator.remove();
+                continue;
+            }
+            if ((limit >= 0 && count >= limit)
+                    || (maxBytes >= 0 && count > 0 && bytes + size > maxBytes)) {
+                break;
+            }
+            visitor.visitEvent(entry.getKey(), entry.getValue().first);
+            maxId = entry.getKey();
+            count++;
+            bytes += size;
+        }
+        return maxId;
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        return events.size();
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        events.headMap(maxId, true).clear();
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        events.remove(id);
+    }
+
+    @Override
+    public synchronized void setEventCapacity(int eventCapacity, int overflowPolicy) {
+        this.eventCapacity = eventCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    synchronized void setEvictionBatchSize(int evictionBatchSize) {
+        this.evictionBatchSize = Math.max(1, evictionBatchSize);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        store.put(key, value);
+        return 1;
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void close() {}
+
+    private boolean makeRoomForEvent(int priority) {
+        if (eventCapacity <= 0 || events.size() < eventCapacity) {
+            return true;
+        }
+
+        int batchSize = Math.min(evictionBatchSize, events.size());
+        switch (overflowPolicy) {
+            case AmplitudeClient.OVERFLOW_POLICY_DROP_NEWEST:
+                return false;
+
+            case AmplitudeClient.OVERFLOW_POLICY_DROP_LOWEST_PRIORITY:
+                return evictLowestPriority(priority, batchSize) > 0;
+
+            default:
+                Iterator<Long> ids = events.keySet().iterator();
+                for (int i = 0; i < batchSize; i++) {
+                    ids.next();
+                    ids.remove();
+                }
+                return true;
+        }
+    }
+
+    private int evictLowestPriority(int priority, int batchSize) {
+        int removed = 0;
+        // walk the priorities upwards, evicting the oldest events of each first
+        while (removed < batchSize) {
+            Integer lowest = null;
+            for (Pair<String, Integer> event : events.values()) {
+                if (event.second <= priority && (lowest == null || event.second < lowest)) {
+                    lowest = event.second;
+                }
+            }
+            if (lowest == null) {
+                break;
+            }
+
+            Iterator<Pair<String, Integer>> iterator = events.values().iterator();
+            while (iterator.hasNext() && removed < batchSize) {
+                if (iterator.next().second.equals(lowest)) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,100 @@
+package com.amplitude.api;
+
+import android.util.Log;
+
+/**
+ * Assembles the JSON array uploaded to the server from the event strings in an EventStore.
+ *
+ * Stored events are already serialized JSON objects, so instead of parsing each one to add
+ * its "event_id" and serializing the whole array again, the id is spliced in as the first
+ * member of the object and the rest of the string is copied through untouched.
+ */
+class JsonEventBatch implements EventStore.EventVisitor {
+
+    private static final String TAG = "com.amplitude.api.JsonEventBatch";
+
+    private final StringBuilder json = new StringBuilder(4096).append('[');
+    private int count = 0;
+    private long maxId = -1;
+
+    @Override
+    public void visitEvent(long eventId, String event) {
+        // the id is still acknowledged with the batch, which drops the bad event for good
+        maxId = eventId;
+        int bodyStart = bodyStart(event);
+        if (bodyStart < 0) {
+            Log.w(TAG, "Dropping malformed event " + eventId);
+            return;
+        }
+
+        if (count++ > 0) {
+            json.append(',');
+        }
+        json.append("{\"event_id\":").append(eventId);
+        if (hasMembers(event, bodyStart)) {
+            json.append(',');
+        }
+        json.append(event, bodyStart, event.length());
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Close the array and return it. Call once, after the last event.
+     */
+    String build() {
+        return json.append(']').toString();
+    }
+
+    /**
+     * @return the index just past the opening brace of the event object, or -1 if the
+     *         event is not a JSON object
+     */
+    static int bodyStart(String event) {
+        int index = skipWhitespace(event, 0);
+        if (index >= event.length() || event.charAt(index) != '{') {
+            return -1;
+        }
+        return index + 1;
+    }
+
+    static boolean hasMembers(String event, int bodyStart) {
+        int index = skipWhitespace(event, bodyStart);
+        return index < event.length() && event.charAt(index) != '}';
+    }
+
+    /**
+     * @return the number of bytes in the UTF-8 encoding of the event, without encoding it
+     */
+    static int utf8Length(String event) {
+        int length = 0;
+        for (int i = 0; i < event.length(); i++) {
+            char c = event.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < event.length()
+                    && Character.isLowSurrogate(event.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int skipWhitespace(String string, int index) {
+        while (index < string.length() && Character.isWhitespace(string.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+}
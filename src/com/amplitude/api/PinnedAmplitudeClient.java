@@ -132,10 +132,20 @@ public class PinnedAmplitudeClient extends AmplitudeClient {
         }
     }
 
-    protected static PinnedAmplitudeClient instance = new PinnedAmplitudeClient();
+    // Created on first use, along with its threads
+    protected static volatile PinnedAmplitudeClient instance;
 
     public static PinnedAmplitudeClient getInstance() {
-        return instance;
+        PinnedAmplitudeClient client = instance;
+        if (client == null) {
+            synchronized (PinnedAmplitudeClient.class) {
+                if (instance == null) {
+                    instance = new PinnedAmplitudeClient();
+                }
+                client = instance;
+            }
+        }
+        return client;
     }
 
     protected SSLSocketFactory sslSocketFactory;
@@ -163,6 +173,15 @@ public class PinnedAmplitudeClient extends AmplitudeClient {
         return sslSocketFactory;
     }
 
+    /**
+     * Uploads pin a copy of the given client, so the app's own client is left untouched.
+     * The copy still shares its connection pool and other settings.
+     */
+    @Override
+    public AmplitudeClient setHttpClient(OkHttpClient httpClient) {
+        return super.setHttpClient(httpClient == null ? null : httpClient.clone());
+    }
+
     @Override
     protected void makeEventUploadPostRequest(OkHttpClient client, String events, final long maxId) {
         SSLSocketFactory factory = getPinnedCertSslSocketFactory();
@@ -174,4 +193,17 @@ public class PinnedAmplitudeClient extends AmplitudeClient {
             Log.e(TAG, "Unable to pin SSL as requested. Cowardly refusing to send data.");
         }
     }
+
+    @Override
+    protected void makeStreamingEventUploadPostRequest(OkHttpClient client,
+            EventUploadRequestBody body) {
+        SSLSocketFactory factory = getPinnedCertSslSocketFactory();
+        if (factory != null) {
+            client.setSslSocketFactory(factory);
+            super.makeStreamingEventUploadPostRequest(client, body);
+        }
+        else {
+            Log.e(TAG, "Unable to pin SSL as requested. Cowardly refusing to send data.");
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package com.amplitude.api;
+
+import java.util.Random;
+
+/**
+ * Spaces out retries of failed uploads with capped exponential backoff. After the nth
+ * consecutive failure no upload is attempted for a delay drawn uniformly from the upper
+ * half of min(maxDelay, baseDelay * 2^(n-1)), so clients that failed together do not all
+ * retry together. A success or a reset, for example when connectivity returns, clears
+ * the backoff.
+ *
+ * Times are SystemClock.elapsedRealtime based. Only changed from logThread, but the next
+ * attempt time can be read from any thread.
+ */
+class RetryScheduler {
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Random random;
+
+    private int failures = 0;
+    private volatile long nextAttemptMillis = 0;
+
+    RetryScheduler(long baseDelayMillis, long maxDelayMillis, Random random) {
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.random = random;
+    }
+
+    /**
+     * Record a failed upload at nowMillis.
+     * @return the delay until the next attempt
+     */
+    long onFailure(long nowMillis) {
+        failures++;
+        long cap = maxDelayMillis;
+        // past 2^30 the cap has long been reached
+        if (failures <= 30) {
+            cap = Math.min(maxDelayMillis, baseDelayMillis << (failures - 1));
+        }
+        long delayMillis = cap - (long) (random.nextDouble() * (cap / 2));
+        nextAttemptMillis = nowMillis + delayMillis;
+        return delayMillis;
+    }
+
+    /**
+     * Whether a failure of an upload attempted after failuresAtAttempt failures falls in
+     * a round that was already counted. Uploads in flight together fail together in one
+     * outage, and only the first of them should move the backoff up a step.
+     */
+    boolean isCounted(int failuresAtAttempt) {
+        return failuresAtAttempt < failures;
+    }
+
+    void reset() {
+        failures = 0;
+        nextAttemptMillis = 0;
+    }
+
+    int getFailures() {
+        return failures;
+    }
+
+    boolean canAttempt(long nowMillis) {
+        return nowMillis >= nextAttemptMillis;
+    }
+
+    /**
+     * @return when the next attempt is allowed, 0 if not backing off
+     */
+    long getNextAttemptMillis() {
+        return nextAttemptMillis;
+    }
+}
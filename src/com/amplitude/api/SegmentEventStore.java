@@ -0,0 +1,527 @@
+package com.amplitude.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import android.util.Log;
+import android.util.Pair;
+
+/**
+ * EventStore backed by an append-only log of memory-mapped segment files.
+ *
+ * Events are appended to the tail segment, uploads read segments sequentially, and segments
+ * are deleted whole once every event in them has been acknowledged. Writes go straight to
+ * the mapped pages, so they survive process death without a per-event fsync or SQL
+ * statement. Each record is laid out as
+ *
+ *   [int length][long id][int priority][length bytes of UTF-8 event JSON]
+ *
+ * and the length is written last, so a record torn by process death reads as the end of
+ * the segment. Single events removed out of order are tombstoned in place by overwriting
+ * their priority, so Integer.MIN_VALUE is stored as the next priority up. The id of the last acknowledged event is kept in a small side file and
+ * key value pairs in a properties file.
+ */
+public class SegmentEventStore implements EventStore {
+
+    private static final String TAG = "com.amplitude.api.SegmentEventStore";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String ACK_FILE_NAME = "ack";
+    private static final String STORE_FILE_NAME = "store.properties";
+    private static final String STORE_TEMP_SUFFIX = ".tmp";
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    private static final int TOMBSTONE = Integer.MIN_VALUE;
+
+    private static class Segment {
+        final long firstId;
+        final File file;
+        MappedByteBuffer buffer;
+        int writePosition = 0;
+        long lastId = -1;
+
+        Segment(long firstId, File file) {
+            this.firstId = firstId;
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+
+    private List<Segment> segments;
+    private EventIdIndex eventIdIndex;
+    private Properties store;
+    private long ackedId = -1;
+    private long nextEventId = 1;
+
+    private int eventCapacity = Constants.EVENT_MAX_COUNT;
+    private int overflowPolicy = AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST;
+    private int evictionBatchSize = Constants.EVENT_REMOVE_BATCH_SIZE;
+
+    public SegmentEventStore(File directory) {
+        this(directory, Constants.EVENT_SEGMENT_SIZE);
+    }
+
+    public SegmentEventStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public synchronized long addEvent(String event, int priority) {
+        try {
+            open();
+            return append(event, priority);
+        } catch (IOException e) {
+            Log.e(TAG, "addEvent failed", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized long addEvents(List<Pair<String, Integer>> events) {
+        long result = -1;
+        try {
+            open();
+            for (Pair<String, Integer> event : events) {
+                long eventId = append(event.first, event.second);
+                if (eventId != -1) {
+                    result = eventId;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "addEvents failed", e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized long readEvents(long afterId, long upToId, int limit, long maxBytes,
+            EventVisitor visitor) throws IOException {
+        long maxId = -1;
+        int count = 0;
+        long bytes = 0;
+        open();
+        long fromId = Math.max(afterId, ackedId);
+        for (Segment segment : segments) {
+            if (segment.lastId <= fromId) {
+                continue;
+            }
+            int position = 0;
+            while (position < segment.writePosition) {
+                if (limit >= 0 && count >= limit) {
+                    return maxId;
+                }
+                int length = segment.buffer.getInt(position);
+                long eventId = segment.buffer.getLong(position + 4);
+                int priority = segment.buffer.getInt(position + 12);
+                if (upToId >= 0 && eventId > upToId) {
+                    return maxId;
+                }
+                if (eventId > fromId && priority != TOMBSTONE) {
+                    if (maxBytes >= 0 && length > maxBytes) {
+                        // no batch within the budget can carry it, tombstone it now
+                        Log.w(TAG, "Dropping event " + eventId + " of " + length
+                                + " bytes, larger than the upload batch limit");
+                        segment.buffer.putInt(position + 12, TOMBSTONE);
+                        eventIdIndex.remove(eventId);
+                    } else if (maxBytes >= 0 && count > 0 && bytes + length > maxBytes) {
+                        return maxId;
+                    } else {
+                        visitor.visitEvent(eventId, readPayload(segment, position, length));
+                        maxId = eventId;
+                        count++;
+                        bytes += length;
+                    }
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+        }
+        return maxId;
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        try {
+            open();
+            return eventIdIndex.size();
+        } catch (IOException e) {
+            Log.e(TAG, "getEventCount failed", e);
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        try {
+            open();
+            acknowledge(maxId);
+        } catch (IOException e) {
+            Log.e(TAG, "removeEvents failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        try {
+            open();
+            if (!eventIdIndex.remove(id)) {
+                return;
+            }
+            for (Segment segment : segments) {
+                if (id < segment.firstId || id > segment.lastId) {
+                    continue;
+                }
+                int position = findRecord(segment, id);
+                if (position >= 0) {
+                    segment.buffer.putInt(position + 12, TOMBSTONE);
+                }
+                return;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "removeEvent failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void setEventCapacity(int eventCapacity, int overflowPolicy) {
+        this.eventCapacity = eventCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    synchronized void setEvictionBatchSize(int evictionBatchSize) {
+        this.evictionBatchSize = Math.max(1, evictionBatchSize);
+    }
+
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
+        try {
+            open();
+            if (value == null) {
+                store.remove(key);
+            } else {
+                store.setProperty(key, value);
+            }
+            writeStore();
+            return 1;
+        } catch (IOException e) {
+            Log.e(TAG, "insertOrReplaceKeyValue failed", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public synchronized String getValue(String key) {
+        try {
+            open();
+            return store.getProperty(key);
+        } catch (IOException e) {
+            Log.e(TAG, "getValue failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Flush the mapped segments and drop them. They are remapped on the next call.
+     */
+    @Override
+    public synchronized void close() {
+        if (segments == null) {
+            return;
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        segments = null;
+        eventIdIndex = null;
+        store = null;
+    }
+
+    private void open() throws IOException {
+        if (segments != null) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        ackedId = readAckedId();
+        store = readStore();
+
+        List<Segment> loaded = new ArrayList<Segment>();
+        EventIdIndex index = new EventIdIndex();
+        long maxId = ackedId;
+
+        File[] files = directory.listFiles();
+        long[] firstIds = new long[files == null ? 0 : files.length];
+        int numSegments = 0;
+        for (int i = 0; i < firstIds.length; i++) {
+            String name = files[i].getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                firstIds[numSegments++] = Long.parseLong(
+                        name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring unexpected file " + name);
+            }
+        }
+        Arrays.sort(firstIds, 0, numSegments);
+
+        for (int i = 0; i < numSegments; i++) {
+            Segment segment = new Segment(firstIds[i], segmentFile(firstIds[i]));
+            segment.buffer = map(segment.file, segment.file.length());
+            scan(segment, index);
+            if (segment.lastId >= 0 && segment.lastId <= ackedId) {
+                // fully acknowledged before the process died, finish deleting it
+                segment.file.delete();
+                continue;
+            }
+            maxId = Math.max(maxId, segment.lastId);
+            loaded.add(segment);
+        }
+
+        segments = loaded;
+        eventIdIndex = index;
+        nextEventId = Math.max(maxId + 1, 1);
+    }
+
+    private void scan(Segment segment, EventIdIndex index) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+            long eventId = buffer.getLong(position + 4);
+            int priority = buffer.getInt(position + 12);
+            if (eventId > ackedId && priority != TOMBSTONE) {
+                index.add(eventId);
+            }
+            segment.lastId = eventId;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+    }
+
+    private long append(String event, int priority) throws IOException {
+        if (priority == TOMBSTONE) {
+            // would read as removed, it is still the lowest priority one above it
+            priority = TOMBSTONE + 1;
+        }
+        if (!makeRoomForEvent(priority)) {
+            return -1;
+        }
+
+        byte[] payload = event.getBytes("UTF-8");
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (tail == null || tail.writePosition + recordSize > tail.buffer.capacity()) {
+            tail = newSegment(nextEventId, Math.max(segmentSize, recordSize));
+        }
+
+        long eventId = nextEventId++;
+        MappedByteBuffer buffer = tail.buffer;
+        int position = tail.writePosition;
+        buffer.putLong(position + 4, eventId);
+        buffer.putInt(position + 12, priority);
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(payload);
+        // writing the length commits the record
+        buffer.putInt(position, payload.length);
+
+        tail.writePosition = position + recordSize;
+        tail.lastId = eventId;
+        eventIdIndex.add(eventId);
+        return eventId;
+    }
+
+    private boolean makeRoomForEvent(int priority) throws IOException {
+        if (eventCapacity <= 0 || eventIdIndex.size() < eventCapacity) {
+            return true;
+        }
+
+        int batchSize = Math.min(evictionBatchSize, eventIdIndex.size());
+        switch (overflowPolicy) {
+            case AmplitudeClient.OVERFLOW_POLICY_DROP_NEWEST:
+                return false;
+
+            case AmplitudeClient.OVERFLOW_POLICY_DROP_LOWEST_PRIORITY:
+                return evictLowestPriority(priority, batchSize) > 0;
+
+            default:
+                acknowledge(eventIdIndex.getNth(batchSize));
+                return true;
+        }
+    }
+
+    private int evictLowestPriority(int priority, int batchSize) {
+        int removed = 0;
+        while (removed < batchSize) {
+            // find the lowest priority that does not outrank the incoming event
+            Integer lowest = null;
+            for (Segment segment : segments) {
+                int position = 0;
+                while (position < segment.writePosition) {
+                    long eventId = segment.buffer.getLong(position + 4);
+                    int eventPriority = segment.buffer.getInt(position + 12);
+                    if (eventId > ackedId && eventPriority != TOMBSTONE && eventPriority <= priority
+                            && (lowest == null || eventPriority < lowest)) {
+                        lowest = eventPriority;
+                    }
+                    position += RECORD_HEADER_SIZE + segment.buffer.getInt(position);
+                }
+            }
+            if (lowest == null) {
+                break;
+            }
+
+            for (Segment segment : segments) {
+                int position = 0;
+                while (position < segment.writePosition && removed < batchSize) {
+                    long eventId = segment.buffer.getLong(position + 4);
+                    if (eventId > ackedId && segment.buffer.getInt(position + 12) == lowest) {
+                        segment.buffer.putInt(position + 12, TOMBSTONE);
+                        eventIdIndex.remove(eventId);
+                        removed++;
+                    }
+                    position += RECORD_HEADER_SIZE + segment.buffer.getInt(position);
+                }
+            }
+        }
+        return removed;
+    }
+
+    private void acknowledge(long maxId) throws IOException {
+        if (maxId <= ackedId) {
+            return;
+        }
+        ackedId = maxId;
+        writeAckedId(maxId);
+        eventIdIndex.removeUpTo(maxId);
+
+        // segments are deleted whole once everything in them is acknowledged, along with
+        // empty ones left before the tail, which would otherwise hold back the rest
+        while (!segments.isEmpty()) {
+            Segment head = segments.get(0);
+            if (head.lastId < 0 ? segments.size() == 1 : head.lastId > ackedId) {
+                break;
+            }
+            segments.remove(0);
+            if (!head.file.delete()) {
+                Log.w(TAG, "Unable to delete " + head.file);
+            }
+        }
+    }
+
+    private int findRecord(Segment segment, long id) {
+        int position = 0;
+        while (position < segment.writePosition) {
+            if (segment.buffer.getLong(position + 4) == id) {
+                return position;
+            }
+            position += RECORD_HEADER_SIZE + segment.buffer.getInt(position);
+        }
+        return -1;
+    }
+
+    private String readPayload(Segment segment, int position, int length)
+            throws UnsupportedEncodingException {
+        byte[] payload = new byte[length];
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.get(payload);
+        return new String(payload, "UTF-8");
+    }
+
+    private Segment newSegment(long firstId, int size) throws IOException {
+        Segment segment = new Segment(firstId, segmentFile(firstId));
+        segment.buffer = map(segment.file, size);
+        segments.add(segment);
+        return segment;
+    }
+
+    private File segmentFile(long firstId) {
+        return new File(directory, firstId + SEGMENT_SUFFIX);
+    }
+
+    private MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                // extending the file zero fills it, which reads as an empty segment
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private long readAckedId() throws IOException {
+        File file = new File(directory, ACK_FILE_NAME);
+        if (file.length() < 8) {
+            return -1;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void writeAckedId(long id) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, ACK_FILE_NAME), "rw");
+        try {
+            raf.writeLong(id);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the store to a temporary file and rename it over the old one, so that a
+     * process killed mid-write leaves the previous store intact.
+     */
+    private void writeStore() throws IOException {
+        File file = new File(directory, STORE_FILE_NAME);
+        File temp = new File(directory, STORE_FILE_NAME + STORE_TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            store.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+    private Properties readStore() throws IOException {
+        Properties properties = new Properties();
+        File file = new File(directory, STORE_FILE_NAME);
+        if (file.exists()) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,90 @@
+package com.amplitude.api;
+
+import android.content.SharedPreferences;
+
+/**
+ * The session bookkeeping that outlives the process: the id of the last stored event, the
+ * time of the last event and the id of the previous session.
+ *
+ * These change with almost every logged event, so they are kept in memory and written to
+ * SharedPreferences behind the callers. Changes made between two calls to persist are
+ * coalesced into one write. Callers may be on any thread.
+ */
+class SessionState {
+
+    private final SharedPreferences preferences;
+
+    private long lastEventId;
+    private long lastEventTime;
+    private long previousSessionId;
+    private boolean dirty = false;
+
+    SessionState(SharedPreferences preferences) {
+        this.preferences = preferences;
+        this.lastEventId = preferences.getLong(Constants.PREFKEY_LAST_EVENT_ID, -1);
+        this.lastEventTime = preferences.getLong(Constants.PREFKEY_LAST_EVENT_TIME, -1);
+        this.previousSessionId = preferences.getLong(Constants.PREFKEY_PREVIOUS_SESSION_ID, -1);
+    }
+
+    synchronized long getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @return true if this left changes to persist
+     */
+    synchronized boolean setLastEventId(long eventId) {
+        if (lastEventId != eventId) {
+            lastEventId = eventId;
+            dirty = true;
+        }
+        return dirty;
+    }
+
+    synchronized long getLastEventTime() {
+        return lastEventTime;
+    }
+
+    synchronized boolean setLastEventTime(long timestamp) {
+        if (lastEventTime != timestamp) {
+            lastEventTime = timestamp;
+            dirty = true;
+        }
+        return dirty;
+    }
+
+    synchronized long getPreviousSessionId() {
+        return previousSessionId;
+    }
+
+    synchronized boolean setPreviousSessionId(long sessionId) {
+        if (previousSessionId != sessionId) {
+            previousSessionId = sessionId;
+            dirty = true;
+        }
+        return dirty;
+    }
+
+    synchronized boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Write the changes since the last call, if any. Blocks on the disk write, so only call
+     * it from logThread, which also keeps the writes in order.
+     */
+    void persist() {
+        SharedPreferences.Editor editor;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            editor = preferences.edit()
+                    .putLong(Constants.PREFKEY_LAST_EVENT_ID, lastEventId)
+                    .putLong(Constants.PREFKEY_LAST_EVENT_TIME, lastEventTime)
+                    .putLong(Constants.PREFKEY_PREVIOUS_SESSION_ID, previousSessionId);
+            dirty = false;
+        }
+        editor.commit();
+    }
+}
@@ -0,0 +1,153 @@
+package com.amplitude.api;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Tracks the upload batches in flight, of which there may be several at a time.
+ *
+ * Each batch covers the contiguous id range (afterId, maxId], and batches are kept sorted
+ * by range. Events may only be removed from the store once every batch before them has
+ * succeeded, so acknowledgement advances past the contiguous prefix of succeeded batches.
+ * A failed batch is dropped, which leaves a gap in the ranges that the next batch fills
+ * before any new events are sent. Once no batch is left the next range starts from the
+ * head of the store again, which only holds unacknowledged events, so the window copes
+ * with the store resetting its ids. Not thread safe, only used from logThread.
+ */
+class UploadWindow {
+
+    static class Batch {
+        final long afterId;
+        final long maxId;
+        final int thread;
+        boolean succeeded = false;
+        // size of the batch, for BatchSizeController
+        int eventCount = 0;
+        // RetryScheduler failures when the batch was sent
+        int failuresAtSend = 0;
+
+        Batch(long afterId, long maxId, int thread) {
+            this.afterId = afterId;
+            this.maxId = maxId;
+            this.thread = thread;
+        }
+    }
+
+    private final LinkedList<Batch> batches = new LinkedList<Batch>();
+    private long ackedId = -1;
+
+    boolean isEmpty() {
+        return batches.isEmpty();
+    }
+
+    int getPendingCount() {
+        int count = 0;
+        for (Batch batch : batches) {
+            if (!batch.succeeded) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the exclusive start of the first id range not covered by a batch
+     */
+    long getNextAfterId() {
+        long afterId = ackedId;
+        for (Batch batch : batches) {
+            if (batch.afterId > afterId) {
+                break;
+            }
+            afterId = batch.maxId;
+        }
+        return afterId;
+    }
+
+    /**
+     * @return the inclusive end of the first id range not covered by a batch if a later
+     *         batch bounds it, or -1 if that range is open ended
+     */
+    long getGapEnd() {
+        long afterId = ackedId;
+        for (Batch batch : batches) {
+            if (batch.afterId > afterId) {
+                return batch.afterId;
+            }
+            afterId = batch.maxId;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the lowest upload thread index not used by a pending batch
+     */
+    int getFreeThread() {
+        int thread = 0;
+        boolean used = true;
+        while (used) {
+            used = false;
+            for (Batch batch : batches) {
+                if (!batch.succeeded && batch.thread == thread) {
+                    used = true;
+                    thread++;
+                    break;
+                }
+            }
+        }
+        return thread;
+    }
+
+    Batch add(long afterId, long maxId, int thread) {
+        Batch batch = new Batch(afterId, maxId, thread);
+        int index = 0;
+        for (Batch other : batches) {
+            if (other.afterId >= maxId) {
+                break;
+            }
+            index++;
+        }
+        batches.add(index, batch);
+        return batch;
+    }
+
+    Batch find(long maxId) {
+        for (Batch batch : batches) {
+            if (batch.maxId == maxId && !batch.succeeded) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    void fail(Batch batch) {
+        batches.remove(batch);
+        if (batches.isEmpty()) {
+            ackedId = -1;
+        }
+    }
+
+    /**
+     * Mark the batch succeeded.
+     * @return the id up to which all events have now been uploaded and can be removed, or
+     *         -1 if the acknowledged prefix did not advance
+     */
+    long succeed(Batch batch) {
+        batch.succeeded = true;
+        long removeUpToId = -1;
+        Iterator<Batch> iterator = batches.iterator();
+        while (iterator.hasNext()) {
+            Batch head = iterator.next();
+            if (!head.succeeded || head.afterId != ackedId) {
+                break;
+            }
+            ackedId = Math.max(ackedId, head.maxId);
+            removeUpToId = ackedId;
+            iterator.remove();
+        }
+        if (batches.isEmpty()) {
+            ackedId = -1;
+        }
+        return removeUpToId;
+    }
+}
@@ -0,0 +1,117 @@
+package com.amplitude.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An immutable, versioned snapshot of the user properties, kept already serialized.
+ *
+ * Each property is encoded once, when it is set, and the snapshot caches the members of
+ * the whole object, so every event embeds the same pre-encoded string instead of
+ * serializing the properties again. Merging builds a new snapshot that shares the encoded
+ * values of the properties it does not change, and appends to the cached members when
+ * it only adds properties. Snapshots are never modified, so they can be read from any
+ * thread.
+ */
+final class UserProperties {
+
+    private final long version;
+    // property name to its encoded "name":value member, in insertion order
+    private final Map<String, String> members;
+    private final String serialized;
+
+    private UserProperties(long version, Map<String, String> members, String serialized) {
+        this.version = version;
+        this.members = members;
+        this.serialized = serialized;
+    }
+
+    /**
+     * Merge properties into base. Properties already in base are replaced; with replace,
+     * base is dropped entirely. properties is read once here and not referenced afterwards.
+     *
+     * @param base the current snapshot, or null if there is none
+     * @return a new snapshot, with a version one past base
+     */
+    static UserProperties merge(UserProperties base, JSONObject properties, boolean replace)
+            throws JSONException {
+        long version = base == null ? 1 : base.version + 1;
+        if (replace) {
+            base = null;
+        }
+
+        Map<String, String> added = new LinkedHashMap<String, String>();
+        EventEncoder encoder = new EventEncoder();
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            String member = encoder.reset().beginObject().name(key).value(properties.opt(key))
+                    .endObject().toJson();
+            added.put(key, member.substring(1, member.length() - 1));
+        }
+
+        if (base == null) {
+            return new UserProperties(version, added, join(added));
+        }
+
+        Map<String, String> merged = new LinkedHashMap<String, String>(base.members);
+        boolean appendOnly = true;
+        for (Map.Entry<String, String> entry : added.entrySet()) {
+            if (merged.put(entry.getKey(), entry.getValue()) != null) {
+                appendOnly = false;
+            }
+        }
+        String serialized;
+        if (!appendOnly) {
+            serialized = join(merged);
+        } else if (added.isEmpty()) {
+            serialized = base.serialized;
+        } else if (base.serialized.length() == 0) {
+            serialized = join(added);
+        } else {
+            serialized = base.serialized + "," + join(added);
+        }
+        return new UserProperties(version, merged, serialized);
+    }
+
+    private static String join(Map<String, String> members) {
+        StringBuilder joined = new StringBuilder();
+        for (String member : members.values()) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(member);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * @return the version, increasing with every merge
+     */
+    long getVersion() {
+        return version;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    /**
+     * @return the properties as the members of a JSON object, without the braces
+     */
+    String getMembers() {
+        return serialized;
+    }
+
+    /**
+     * @return the properties as a JSON object
+     */
+    @Override
+    public String toString() {
+        return "{" + serialized + "}";
+    }
+}
@@ -2,7 +2,12 @@ package com.amplitude.api;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 
+/**
+ * A HandlerThread that starts itself the first time it is used, so that clients which are
+ * never used don't cost a thread.
+ */
 public class WorkerThread extends HandlerThread {
 	
 	public WorkerThread(String name) {
@@ -30,6 +35,18 @@ public class WorkerThread extends HandlerThread {
 		handler.removeCallbacks(r);
 	}
 
+	@Override
+	public Looper getLooper() {
+		startIfNeeded();
+		return super.getLooper();
+	}
+
+	private synchronized void startIfNeeded() {
+		if (getState() == State.NEW) {
+			start();
+		}
+	}
+
 	private synchronized void waitForInitialization() {
 		if (handler == null) {
 			handler = new Handler(getLooper());
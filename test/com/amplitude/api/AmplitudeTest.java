@@ -4,10 +4,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.net.URLDecoder;
+import java.util.List;
+
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
@@ -21,10 +26,18 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowConnectivityManager;
 import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
 
+import android.Manifest;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(manifest = Config.NONE)
@@ -53,6 +66,40 @@ public class AmplitudeTest extends BaseTest {
                         Constants.PREFKEY_USER_ID, null));
     }
 
+    @Test
+    public void testInitializeInBackground() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        SharedPreferences prefs = context.getSharedPreferences(
+                amplitude.getSharedPreferencesName(), Context.MODE_PRIVATE);
+        prefs.edit().putString(Constants.PREFKEY_USER_ID, "stored_user_id").commit();
+        assertNull(amplitude.getUserId());
+        assertFalse(amplitude.awaitInitialization(0));
+
+        // calls made meanwhile run once the stored state is loaded
+        amplitude.logEvent("test_before_init");
+        looper.runToEndOfTasks();
+        assertTrue(amplitude.awaitInitialization(0));
+        assertEquals("stored_user_id", amplitude.getUserId());
+        assertNotNull(amplitude.getDeviceId());
+        JSONObject event = getLastUnsentEvent();
+        assertEquals("test_before_init", event.optString("event_type"));
+        assertEquals("stored_user_id", event.optString("user_id"));
+    }
+
+    @Test
+    public void testLazyThreads() {
+        AmplitudeClient client = new AmplitudeClient();
+        assertEquals(Thread.State.NEW, client.logThread.getState());
+        assertEquals(Thread.State.NEW, client.httpThread.getState());
+        assertSame(client, client.setEventUploadThreshold(10));
+
+        // started by the first use
+        assertNotNull(client.logThread.getLooper());
+        assertFalse(client.logThread.getState() == Thread.State.NEW);
+        assertEquals(Thread.State.NEW, client.httpThread.getState());
+        client.logThread.getLooper().quit();
+    }
+
     @Test
     public void testSetUserIdTwice() {
         ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
@@ -119,6 +166,30 @@ public class AmplitudeTest extends BaseTest {
         assertEquals(expected.toString(), amplitude.userProperties.toString());
     }
 
+    @Test
+    public void testUserPropertiesSnapshot() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setUserProperties(new JSONObject().put("plan", "free"));
+        amplitude.logEvent("before");
+        looper.runToEndOfTasks();
+        UserProperties snapshot = amplitude.userProperties;
+
+        amplitude.setUserProperties(new JSONObject().put("plan", "pro").put("seats", 5));
+        amplitude.logEvent("after");
+        looper.runToEndOfTasks();
+        // the old snapshot is replaced, not modified
+        assertEquals("{\"plan\":\"free\"}", snapshot.toString());
+        assertEquals(snapshot.getVersion() + 1, amplitude.userProperties.getVersion());
+
+        JSONArray events = getUnsentEvents(2);
+        JSONObject before = events.getJSONObject(0).getJSONObject("user_properties");
+        assertEquals(1, before.length());
+        assertEquals("free", before.getString("plan"));
+        JSONObject after = events.getJSONObject(1).getJSONObject("user_properties");
+        assertEquals("pro", after.getString("plan"));
+        assertEquals(5, after.getInt("seats"));
+    }
+
     @Test
     public void testReloadDeviceIdFromDatabase() {
         String deviceId = "test_device_id";
@@ -137,6 +208,8 @@ public class AmplitudeTest extends BaseTest {
     public void testDoesNotUpgradeDeviceIdFromSharedPrefsToDatabase() {
         assertNull(amplitude.getDeviceId());
         ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        // let initialize run its one time upgrades first
+        looper.runOneTask();
 
         // initializeDeviceId no longer fetches from SharedPrefs, will get advertising ID instead
         String targetName = Constants.PACKAGE_NAME + "." + context.getPackageName();
@@ -291,6 +364,38 @@ public class AmplitudeTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testLogTypedEvent() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        long timestamp = System.currentTimeMillis() - 1000;
+        amplitude.logEvent(new Event.Builder("test_typed_event")
+                .setEventProperties(new EventProperties.Builder()
+                        .putString("item", "coins")
+                        .putLong("quantity", 100)
+                        .putDouble("price", 0.99)
+                        .putBoolean("gift", true)
+                        .build())
+                .setTimestamp(timestamp)
+                .build());
+        amplitude.logEvent(new Event.Builder("test_no_properties").setOutOfSession(true).build());
+        looper.runToEndOfTasks();
+
+        JSONArray events = getUnsentEvents(2);
+        JSONObject event = events.getJSONObject(0);
+        assertEquals("test_typed_event", event.getString("event_type"));
+        assertEquals(timestamp, event.getLong("timestamp"));
+        JSONObject properties = event.getJSONObject("event_properties");
+        assertEquals("coins", properties.getString("item"));
+        assertEquals(100, properties.getLong("quantity"));
+        assertEquals(0.99, properties.getDouble("price"), 0);
+        assertTrue(properties.getBoolean("gift"));
+
+        event = events.getJSONObject(1);
+        assertEquals("test_no_properties", event.getString("event_type"));
+        assertEquals(-1, event.getLong("session_id"));
+        assertEquals(0, event.getJSONObject("event_properties").length());
+    }
+
     /**
      * Test for not excepting on empty event properties.
      * See https://github.com/amplitude/Amplitude-Android/issues/35
@@ -362,6 +467,7 @@ public class AmplitudeTest extends BaseTest {
         looper.runToEndOfTasks();
         server.enqueue(new MockResponse().setResponseCode(413));
         httpLooper.runToEndOfTasks();
+        looper.runOneTask(); // the 413 is handled on the log thread
 
         // verify only start session event removed
         assertEquals(getUnsentEventCount(), 2);
@@ -396,4 +502,596 @@ public class AmplitudeTest extends BaseTest {
         assertFalse(apiProperties.optBoolean("limit_ad_tracking"));
         assertFalse(apiProperties.has("androidADID"));
     }
+
+    @Test
+    public void testGroupCommit() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setEventIngestBatchSize(10).setEventIngestMaxLatencyMillis(1000);
+
+        // events are buffered on the log thread until the latency budget expires
+        for (int i = 0; i < 3; i++) {
+            amplitude.logEvent("test_group_commit");
+        }
+        looper.runOneTask();
+        looper.runOneTask();
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(amplitude.getLastEventId(), -1);
+
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 3);
+        assertEquals(amplitude.getLastEventId(), 3);
+
+        // filling the batch commits immediately
+        for (int i = 0; i < 10; i++) {
+            amplitude.logEvent("test_group_commit");
+        }
+        for (int i = 0; i < 10; i++) {
+            looper.runOneTask();
+        }
+        assertEquals(getUnsentEventCount(), 13);
+        assertEquals(amplitude.getLastEventId(), 13);
+    }
+
+    @Test
+    public void testGroupCommitOnBackground() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setEventIngestBatchSize(10).setEventIngestMaxLatencyMillis(60000);
+
+        // buffered events are written as soon as the app leaves the foreground
+        for (int i = 0; i < 3; i++) {
+            amplitude.logEvent("test_group_commit_background");
+        }
+        amplitude.onExitForeground(System.currentTimeMillis());
+        for (int i = 0; i < 4; i++) {
+            looper.runOneTask();
+        }
+        assertEquals(getUnsentEventCount(), 3);
+        assertEquals(amplitude.getLastEventId(), 3);
+
+        // and before the store is closed on memory trim
+        amplitude.logEvent("test_group_commit_trim");
+        amplitude.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        looper.runOneTask();
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 4);
+        assertEquals(amplitude.getLastEventId(), 4);
+    }
+
+    @Test
+    public void testGroupCommitLogEventSync() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.setEventIngestBatchSize(10).setEventIngestMaxLatencyMillis(1000);
+
+        amplitude.logEventSync("test_group_commit_sync", null);
+        assertEquals(getUnsentEventCount(), 1);
+        assertEquals("test_group_commit_sync", getLastEvent().optString("event_type"));
+    }
+
+    @Test
+    public void testInMemoryEventStore() {
+        InMemoryEventStore store = new InMemoryEventStore();
+        amplitude.setEventStore(store);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        amplitude.logEvent("test_in_memory");
+        looper.runToEndOfTasks();
+        assertEquals(1, store.getEventCount());
+        assertEquals(getUnsentEventCount(), 0);
+        assertNotNull(amplitude.getDeviceId());
+
+        RecordedRequest request = runRequest();
+        assertNotNull(request);
+        looper.runToEndOfTasks();
+        assertEquals(0, store.getEventCount());
+    }
+
+    @Test
+    public void testStreamingUpload() throws Exception {
+        amplitude.setStreamingUpload(true);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        amplitude.logEvent("test_streaming_1");
+        amplitude.logEvent("test_streaming_2");
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 2);
+
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest();
+        assertNotNull(request);
+        assertEquals("chunked", request.getHeader("Transfer-Encoding"));
+
+        String body = URLDecoder.decode(request.getUtf8Body(), "UTF-8");
+        assertTrue(body.startsWith("v=" + Constants.API_VERSION + "&client="));
+        assertTrue(body.contains("\"event_type\":\"test_streaming_1\""));
+        assertTrue(body.contains("\"event_type\":\"test_streaming_2\""));
+        assertTrue(body.contains("&checksum="));
+
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testSharedHttpClient() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        OkHttpClient client = amplitude.getHttpClient();
+        assertSame(client, amplitude.getHttpClient());
+        assertEquals(Constants.HTTP_CONNECT_TIMEOUT_MILLIS, client.getConnectTimeout());
+        assertEquals(Constants.HTTP_READ_TIMEOUT_MILLIS, client.getReadTimeout());
+
+        amplitude.logEvent("test_shared_client_1");
+        looper.runToEndOfTasks();
+        RecordedRequest first = runRequest();
+        assertNotNull(first);
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+
+        amplitude.logEvent("test_shared_client_2");
+        looper.runToEndOfTasks();
+        RecordedRequest second = runRequest();
+        assertNotNull(second);
+
+        // the second batch reuses the first batch's connection
+        assertEquals(0, first.getSequenceNumber());
+        assertEquals(1, second.getSequenceNumber());
+        assertSame(client, amplitude.getHttpClient());
+    }
+
+    @Test
+    public void testGzipUpload() throws Exception {
+        IngestionDispatcher ingestion = new IngestionDispatcher("1cc2c1978ebab0f6451112a8f5df4f4e");
+        server.setDispatcher(ingestion);
+        amplitude.setGzipUpload(true);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+
+        for (int i = 0; i < 20; i++) {
+            amplitude.logEvent("test_gzip", new JSONObject().put("index", i));
+        }
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        assertNotNull(server.takeRequest(1, SECONDS));
+        looper.runToEndOfTasks();
+
+        assertEquals("gzip", ingestion.getContentEncodings().get(0));
+        assertEquals(20, ingestion.getEvents().size());
+        assertEquals(19, ingestion.getEvents().get(19).getJSONObject("event_properties").getInt("index"));
+        assertTrue(ingestion.getBytesReceived() * 4 < ingestion.getBytesDecoded());
+        assertEquals(getUnsentEventCount(), 0);
+
+        // streamed batches compress the same way
+        amplitude.setStreamingUpload(true);
+        amplitude.logEvent("test_gzip_streaming");
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        assertNotNull(server.takeRequest(1, SECONDS));
+        looper.runToEndOfTasks();
+
+        assertEquals("gzip", ingestion.getContentEncodings().get(1));
+        assertEquals(21, ingestion.getEvents().size());
+        assertEquals("test_gzip_streaming", ingestion.getEvents().get(20).getString("event_type"));
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testUserPropertiesOnChange() throws Exception {
+        IngestionDispatcher ingestion = new IngestionDispatcher("1cc2c1978ebab0f6451112a8f5df4f4e");
+        server.setDispatcher(ingestion);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        amplitude.setUserProperties(new JSONObject().put("country", "us"));
+        amplitude.setUserPropertiesOnChange(true);
+
+        // changes before an event are coalesced into one identify
+        amplitude.setUserProperties(new JSONObject().put("seats", 1).put("plan", "team"));
+        amplitude.setUserProperties(new JSONObject().put("seats", 2));
+        amplitude.logEvent("first");
+        amplitude.logEvent("second");
+        amplitude.setUserProperties(new JSONObject().put("region", "eu"), true);
+        amplitude.logEvent("third");
+        // changes after the last event go out with the upload
+        amplitude.setUserProperties(new JSONObject().put("seats", 3));
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        assertNotNull(server.takeRequest(1, SECONDS));
+        looper.runToEndOfTasks();
+        assertEquals(0, getUnsentEventCount());
+
+        List<JSONObject> events = ingestion.getEvents();
+        String[] eventTypes = {AmplitudeClient.IDENTIFY_EVENT, "first", "second",
+                AmplitudeClient.IDENTIFY_EVENT, AmplitudeClient.IDENTIFY_EVENT, "third",
+                AmplitudeClient.IDENTIFY_EVENT};
+        assertEquals(eventTypes.length, events.size());
+        for (int i = 0; i < eventTypes.length; i++) {
+            assertEquals(eventTypes[i], events.get(i).getString("event_type"));
+        }
+        JSONObject set = events.get(0).getJSONObject("user_properties").getJSONObject("$set");
+        // including the properties set before the mode was turned on
+        assertEquals(3, set.length());
+        assertEquals("us", set.getString("country"));
+        assertEquals("team", set.getString("plan"));
+        assertEquals(2, set.getInt("seats"));
+        assertEquals(0, events.get(1).getJSONObject("user_properties").length());
+        assertEquals(-1, events.get(0).getLong("session_id"));
+        assertTrue(events.get(3).getJSONObject("user_properties").has("$clearAll"));
+
+        JSONObject expected = new JSONObject(amplitude.userProperties.toString());
+        JSONObject reconstructed = ingestion.getUserProperties();
+        assertEquals(2, reconstructed.length());
+        assertEquals(expected.getString("region"), reconstructed.getString("region"));
+        assertEquals(expected.getInt("seats"), reconstructed.getInt("seats"));
+    }
+
+    @Test
+    public void testUserPropertiesClearedBeforeOnChange() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setUserProperties(new JSONObject().put("plan", "free"));
+        amplitude.setUserProperties(null, true);
+        // a clear made before the mode was on is not sent later
+        amplitude.setUserPropertiesOnChange(true);
+        amplitude.logEvent("test_no_clear");
+        looper.runToEndOfTasks();
+
+        assertEquals(1, getUnsentEventCount());
+        assertEquals("test_no_clear", getLastUnsentEvent().getString("event_type"));
+    }
+
+    @Test
+    public void testConcurrentUpload() throws Exception {
+        amplitude.setUploadConcurrency(2).setEventUploadMaxBatchSize(5);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 10; i++) {
+            amplitude.logEvent("test_concurrent_" + i);
+        }
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 10);
+
+        // the first batch is pending on httpThread while the second one is sent
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        assertEquals(2, amplitude.httpThreads.size());
+        server.enqueue(new MockResponse().setBody("success"));
+        Shadows.shadowOf(amplitude.httpThreads.get(1).getLooper()).runToEndOfTasks();
+        RecordedRequest second = server.takeRequest(1, SECONDS);
+        assertTrue(URLDecoder.decode(second.getUtf8Body(), "UTF-8").contains("test_concurrent_5"));
+        looper.runToEndOfTasks();
+        // not removed until the first batch succeeds too
+        assertEquals(getUnsentEventCount(), 10);
+
+        // the first batch fails and is sent again, the second is not
+        server.enqueue(new MockResponse().setBody("request_db_write_failed"));
+        Shadows.shadowOf(amplitude.httpThread.getLooper()).runToEndOfTasks();
+        RecordedRequest first = server.takeRequest(1, SECONDS);
+        assertTrue(URLDecoder.decode(first.getUtf8Body(), "UTF-8").contains("test_concurrent_0"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 10);
+
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setBody("success"));
+        Shadows.shadowOf(amplitude.httpThread.getLooper()).runToEndOfTasks();
+        String retry = URLDecoder.decode(server.takeRequest(1, SECONDS).getUtf8Body(), "UTF-8");
+        assertTrue(retry.contains("test_concurrent_0"));
+        assertFalse(retry.contains("test_concurrent_5"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(3, server.getRequestCount());
+    }
+
+    private static int countOccurrences(String string, String substring) {
+        return string.split(substring, -1).length - 1;
+    }
+
+    @Test
+    public void testAdaptiveBatchSize() throws Exception {
+        amplitude.setAdaptiveBatchSize(true).setEventUploadMaxBatchSize(4);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 6; i++) {
+            amplitude.logEvent("test_adaptive");
+        }
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 6);
+
+        // 413 halves the batch size and sends again straight away
+        server.enqueue(new MockResponse().setResponseCode(413));
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        httpLooper.runToEndOfTasks();
+        String tooLarge = URLDecoder.decode(server.takeRequest(1, SECONDS).getUtf8Body(), "UTF-8");
+        assertEquals(4, countOccurrences(tooLarge, "test_adaptive"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 6);
+
+        RecordedRequest request = runRequest();
+        String half = URLDecoder.decode(request.getUtf8Body(), "UTF-8");
+        assertEquals(2, countOccurrences(half, "test_adaptive"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 4);
+
+        // a full batch accepted quickly grows the batch size again
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        request = runRequest();
+        String grown = URLDecoder.decode(request.getUtf8Body(), "UTF-8");
+        assertEquals(4, countOccurrences(grown, "test_adaptive"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testUploadRetryBackoff() throws Exception {
+        amplitude.setUploadRetryBackoff(true);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        assertEquals(0, amplitude.getNextUploadAttemptTime());
+
+        amplitude.logEvent("test_retry");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setBody("request_db_write_failed"));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.runToEndOfTasks();
+        long now = System.currentTimeMillis();
+        assertTrue(amplitude.getNextUploadAttemptTime() > now);
+        assertTrue(amplitude.getNextUploadAttemptTime()
+                <= now + Constants.UPLOAD_RETRY_BASE_DELAY_MILLIS + 1000);
+
+        // no new attempt while backing off
+        amplitude.uploadEvents();
+        looper.runOneTask();
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        assertEquals(1, server.getRequestCount());
+
+        // retried once the delay passes
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        RecordedRequest retry = server.takeRequest(1, SECONDS);
+        assertTrue(URLDecoder.decode(retry.getUtf8Body(), "UTF-8").contains("test_retry"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(0, amplitude.getNextUploadAttemptTime());
+
+        // a reset retries right away
+        amplitude.logEvent("test_reset");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setBody("bad_checksum"));
+        httpLooper.runToEndOfTasks();
+        server.takeRequest(1, SECONDS);
+        looper.runToEndOfTasks();
+        assertTrue(amplitude.getNextUploadAttemptTime() > 0);
+        amplitude.resetUploadBackoff();
+        looper.runOneTask();
+        assertEquals(0, amplitude.getNextUploadAttemptTime());
+        RecordedRequest request = runRequest();
+        assertTrue(URLDecoder.decode(request.getUtf8Body(), "UTF-8").contains("test_reset"));
+        looper.runToEndOfTasks();
+        assertEquals(0, amplitude.getNextUploadAttemptTime());
+
+        // concurrent batches failing in the same outage move the backoff up one step
+        amplitude.setUploadConcurrency(2).setEventUploadMaxBatchSize(1);
+        amplitude.logEvent("test_concurrent_retry_1");
+        amplitude.logEvent("test_concurrent_retry_2");
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        assertEquals(2, amplitude.httpThreads.size());
+        server.enqueue(new MockResponse().setBody("request_db_write_failed"));
+        server.enqueue(new MockResponse().setBody("request_db_write_failed"));
+        httpLooper.runToEndOfTasks();
+        Shadows.shadowOf(amplitude.httpThreads.get(1).getLooper()).runToEndOfTasks();
+        assertNotNull(server.takeRequest(1, SECONDS));
+        assertNotNull(server.takeRequest(1, SECONDS));
+        looper.runToEndOfTasks();
+        assertEquals(1, amplitude.retryScheduler.getFailures());
+        assertEquals(getUnsentEventCount(), 2);
+    }
+
+    @Test
+    public void testConnectivityAwareUpload() throws Exception {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+        ShadowConnectivityManager connectivity = Shadows.shadowOf((ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE));
+        connectivity.setActiveNetworkInfo(null);
+        amplitude.setConnectivityAwareUpload(true);
+        assertTrue(ShadowApplication.getInstance().hasReceiverForIntent(
+                new Intent(ConnectivityManager.CONNECTIVITY_ACTION)));
+
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.logEvent("test_offline");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // no attempt is made while offline
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        assertEquals(0, server.getRequestCount());
+        assertEquals(getUnsentEventCount(), 1);
+
+        connectivity.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(
+                NetworkInfo.DetailedState.CONNECTED, ConnectivityManager.TYPE_WIFI, 0, true, true));
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        RecordedRequest request = server.takeRequest(1, SECONDS);
+        assertTrue(URLDecoder.decode(request.getUtf8Body(), "UTF-8").contains("test_offline"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+
+        amplitude.setConnectivityAwareUpload(false);
+        assertFalse(ShadowApplication.getInstance().hasReceiverForIntent(
+                new Intent(ConnectivityManager.CONNECTIVITY_ACTION)));
+    }
+
+    @Test
+    public void testUnmeteredUploadOnly() throws Exception {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+        ShadowConnectivityManager connectivity = Shadows.shadowOf((ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE));
+        connectivity.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(
+                NetworkInfo.DetailedState.CONNECTED, ConnectivityManager.TYPE_MOBILE, 0, true, true));
+        amplitude.setUnmeteredUploadOnly(true).setMeteredUploadBacklog(3);
+
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.logEvent("test_metered1");
+        amplitude.logEvent("test_metered2");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // below the backlog the upload waits for an unmetered network
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        assertEquals(0, server.getRequestCount());
+        assertEquals(getUnsentEventCount(), 2);
+
+        // at the backlog it goes over the metered network anyway
+        amplitude.logEvent("test_metered3");
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        httpLooper.runToEndOfTasks();
+        RecordedRequest request = server.takeRequest(1, SECONDS);
+        assertNotNull(request);
+        String body = URLDecoder.decode(request.getUtf8Body(), "UTF-8");
+        assertTrue(body.contains("test_metered1"));
+        assertTrue(body.contains("test_metered3"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testUnmeteredUploadOnlyOnWifi() throws Exception {
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.ACCESS_NETWORK_STATE);
+        ShadowConnectivityManager connectivity = Shadows.shadowOf((ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE));
+        connectivity.setActiveNetworkInfo(ShadowNetworkInfo.newInstance(
+                NetworkInfo.DetailedState.CONNECTED, ConnectivityManager.TYPE_WIFI, 0, true, true));
+        amplitude.setUnmeteredUploadOnly(true).setMeteredUploadBacklog(3);
+
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        amplitude.logEvent("test_unmetered");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // well below the backlog, but nothing to wait for
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        RecordedRequest request = server.takeRequest(1, SECONDS);
+        assertNotNull(request);
+        assertTrue(URLDecoder.decode(request.getUtf8Body(), "UTF-8").contains("test_unmetered"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testFlushOnBackgroundWaitsForBatchInFlight() throws Exception {
+        amplitude.setFlushOnBackground(true);
+        AmplitudeCallbacks callbacks = new AmplitudeCallbacks(amplitude);
+        callbacks.onActivityResumed(null);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent("test_in_flight");
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadEvents();
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 3; i++) {
+            amplitude.logEvent("test_waiting");
+        }
+        looper.runToEndOfTasks();
+
+        // the flush doesn't start a second request next to the one in flight
+        callbacks.onActivityPaused(null);
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(1, amplitude.httpThreads.size());
+        RecordedRequest first = runRequest();
+        String body = URLDecoder.decode(first.getUtf8Body(), "UTF-8");
+        assertEquals(5, countOccurrences(body, "test_in_flight"));
+        assertEquals(0, countOccurrences(body, "test_waiting"));
+        assertEquals(1, server.getRequestCount());
+
+        // and runs once that request finishes
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        RecordedRequest second = runRequest();
+        body = URLDecoder.decode(second.getUtf8Body(), "UTF-8");
+        assertEquals(3, countOccurrences(body, "test_waiting"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+    }
+
+    @Test
+    public void testFlushOnBackground() throws Exception {
+        amplitude.setFlushOnBackground(true);
+        AmplitudeCallbacks callbacks = new AmplitudeCallbacks(amplitude);
+        callbacks.onActivityResumed(null);
+
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent("test_foreground");
+        }
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(0, server.getRequestCount());
+        assertEquals(getUnsentEventCount(), 5);
+
+        // switching activities doesn't flush
+        callbacks.onActivityPaused(null);
+        callbacks.onActivityResumed(null);
+        looper.runToEndOfTasks();
+        assertEquals(0, server.getRequestCount());
+
+        callbacks.onActivityPaused(null);
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest();
+        String body = URLDecoder.decode(request.getUtf8Body(), "UTF-8");
+        assertEquals(5, countOccurrences(body, "test_foreground"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+
+        // on a slow link the batch shrinks to what fits the time budget
+        callbacks.onActivityResumed(null);
+        for (int i = 0; i < 10; i++) {
+            amplitude.logEvent("test_slow_link");
+        }
+        looper.runToEndOfTasks();
+        amplitude.uploadEventsPerMilli = 0.001;
+        amplitude.setBackgroundFlushTimeBudgetMillis(3000);
+        callbacks.onActivityPaused(null);
+        looper.runToEndOfTasks();
+        request = runRequest();
+        body = URLDecoder.decode(request.getUtf8Body(), "UTF-8");
+        assertEquals(3, countOccurrences(body, "test_slow_link"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 7);
+    }
 }
@@ -6,6 +6,7 @@ import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
+import java.io.IOException;
 import java.lang.InterruptedException;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -110,7 +111,7 @@ public class BaseTest {
     public JSONArray getUnsentEvents(int limit) {
         try {
             DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-            Pair<Long, JSONArray> pair = dbHelper.getEvents(-1, -1);
+            Pair<Long, JSONArray> pair = readEvents(dbHelper, -1, -1);
 
             JSONArray out = new JSONArray();
             int start = Math.max(limit - pair.second.length(), 0);
@@ -128,11 +129,36 @@ public class BaseTest {
     public JSONObject getLastEvent() {
         try {
             DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
-            Pair<Long, JSONArray> pair = dbHelper.getEvents(-1, -1);
+            Pair<Long, JSONArray> pair = readEvents(dbHelper, -1, -1);
             return (JSONObject)pair.second.get(pair.second.length() - 1);
         } catch (JSONException e) {
             fail(e.toString());
         }
         return null;
     }
+
+    /**
+     * Read up to limit events with id <= upToId from store, parsed and with "event_id" added
+     * the way they are uploaded. A negative upToId or limit means no bound.
+     * @return the max id read, -1 if none, and the events
+     */
+    public static Pair<Long, JSONArray> readEvents(EventStore store, long upToId, int limit) {
+        final JSONArray events = new JSONArray();
+        try {
+            long maxId = store.readEvents(-1, upToId, limit, -1, new EventStore.EventVisitor() {
+                @Override
+                public void visitEvent(long eventId, String event) throws IOException {
+                    try {
+                        events.put(new JSONObject(event).put("event_id", eventId));
+                    } catch (JSONException e) {
+                        throw new IOException(e.toString());
+                    }
+                }
+            });
+            return new Pair<Long, JSONArray>(maxId, events);
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+        return null;
+    }
 }
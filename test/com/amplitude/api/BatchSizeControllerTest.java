@@ -0,0 +1,58 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BatchSizeControllerTest {
+
+    private BatchSizeController controller() {
+        return new BatchSizeController(100, 1000, 50, 3000);
+    }
+
+    private void succeed(BatchSizeController controller, long latencyMillis) {
+        controller.onBatchFinished(controller.getBatchLimit(),
+                BatchSizeController.RESULT_SUCCESS, latencyMillis);
+    }
+
+    @Test
+    public void testAdditiveIncrease() {
+        BatchSizeController controller = controller();
+        assertEquals(100, controller.getBatchLimit());
+        succeed(controller, 100);
+        assertEquals(150, controller.getBatchLimit());
+        for (int i = 0; i < 100; i++) {
+            succeed(controller, 100);
+        }
+        assertEquals(1000, controller.getBatchLimit());
+    }
+
+    @Test
+    public void testPartialBatchDoesNotGrow() {
+        BatchSizeController controller = controller();
+        controller.onBatchFinished(10, BatchSizeController.RESULT_SUCCESS, 100);
+        assertEquals(100, controller.getBatchLimit());
+    }
+
+    @Test
+    public void testMultiplicativeDecrease() {
+        BatchSizeController controller = controller();
+        succeed(controller, 5000);
+        assertEquals(50, controller.getBatchLimit());
+        controller.onBatchFinished(50, BatchSizeController.RESULT_TIMEOUT, 0);
+        assertEquals(25, controller.getBatchLimit());
+        // a 413 halves the batch that was actually sent
+        controller.onBatchFinished(10, BatchSizeController.RESULT_TOO_LARGE, 0);
+        assertEquals(5, controller.getBatchLimit());
+        for (int i = 0; i < 10; i++) {
+            controller.onBatchFinished(1, BatchSizeController.RESULT_TOO_LARGE, 0);
+        }
+        assertEquals(1, controller.getBatchLimit());
+
+        // other failures leave it alone
+        succeed(controller, 100);
+        assertEquals(51, controller.getBatchLimit());
+        controller.onBatchFinished(51, BatchSizeController.RESULT_FAILED, 0);
+        assertEquals(51, controller.getBatchLimit());
+    }
+}
@@ -1,10 +1,17 @@
 package com.amplitude.api;
 
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Pair;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONArray;
@@ -158,6 +165,91 @@ public class DatabaseHelperTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testReadEvents() throws Exception {
+        assertEquals(1, addEvent("test_read_events_1"));
+        assertEquals(2, dbInstance.addEvent(" { } "));
+        assertEquals(3, addEvent("test_read_events_3"));
+        assertEquals(4, dbInstance.addEvent("not json"));
+        assertEquals(5, addEvent("test_read_events_5"));
+
+        JsonEventBatch batch = new JsonEventBatch();
+        assertEquals(5, dbInstance.readEvents(-1, -1, -1, -1, batch));
+        assertEquals(4, batch.size());
+        JSONArray events = new JSONArray(batch.build());
+        assertEquals(4, events.length());
+        assertEquals(1, events.getJSONObject(0).getLong("event_id"));
+        assertEquals("test_read_events_1", events.getJSONObject(0).getString("event_type"));
+        assertEquals(2, events.getJSONObject(1).getLong("event_id"));
+        assertEquals(1, events.getJSONObject(1).length());
+        assertEquals(5, events.getJSONObject(3).getLong("event_id"));
+
+        batch = new JsonEventBatch();
+        assertEquals(3, dbInstance.readEvents(1, 4, 2, -1, batch));
+        events = new JSONArray(batch.build());
+        assertEquals(2, events.length());
+        assertEquals(2, events.getJSONObject(0).getLong("event_id"));
+        assertEquals("test_read_events_3", events.getJSONObject(1).getString("event_type"));
+
+        batch = new JsonEventBatch();
+        assertEquals(-1, dbInstance.readEvents(5, -1, -1, -1, batch));
+        assertEquals("[]", batch.build());
+    }
+
+    @Test
+    public void testReadEventsByteBudget() throws Exception {
+        // 19 bytes each, the third one 63 bytes
+        assertEquals(1, dbInstance.addEvent("{\"event_type\":\"e1\"}"));
+        assertEquals(2, dbInstance.addEvent("{\"event_type\":\"e2\"}"));
+        assertEquals(3, dbInstance.addEvent("{\"event_type\":\"e3\",\"p\":\""
+                + "0123456789012345678901234567890123456\"}"));
+        assertEquals(4, dbInstance.addEvent("{\"event_type\":\"e4\"}"));
+        assertEquals(5, dbInstance.addEvent("{\"event_type\":\"e5\"}"));
+
+        // stops before the event that would go over the budget
+        JsonEventBatch batch = new JsonEventBatch();
+        assertEquals(2, dbInstance.readEvents(-1, -1, -1, 79, batch));
+        assertEquals(2, batch.size());
+
+        // the first event is sent even if it alone fills the budget
+        batch = new JsonEventBatch();
+        assertEquals(3, dbInstance.readEvents(2, -1, -1, 63, batch));
+        assertEquals(1, batch.size());
+
+        // too large for any batch, quarantined without being read
+        batch = new JsonEventBatch();
+        assertEquals(2, dbInstance.readEvents(-1, -1, -1, 50, batch));
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getQuarantinedEventCount());
+        batch = new JsonEventBatch();
+        assertEquals(5, dbInstance.readEvents(2, -1, -1, 50, batch));
+        JSONArray events = new JSONArray(batch.build());
+        assertEquals(2, events.length());
+        assertEquals(4, events.getJSONObject(0).getLong("event_id"));
+    }
+
+    @Test
+    public void testReadEventsQuarantinesOnlyWithinBatch() throws Exception {
+        assertEquals(1, dbInstance.addEvent("{\"event_type\":\"e1\"}"));
+        assertEquals(2, dbInstance.addEvent("{\"event_type\":\"e2\"}"));
+        assertEquals(3, dbInstance.addEvent("{\"event_type\":\"e3\",\"p\":\""
+                + "0123456789012345678901234567890123456\"}"));
+        assertEquals(4, dbInstance.addEvent("{\"event_type\":\"e4\"}"));
+
+        // the oversized event is past the end of the batch and left alone
+        JsonEventBatch batch = new JsonEventBatch();
+        assertEquals(2, dbInstance.readEvents(-1, -1, 2, 50, batch));
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(0, dbInstance.getQuarantinedEventCount());
+
+        // once the batch reaches it, it is quarantined and the next event takes its place
+        batch = new JsonEventBatch();
+        assertEquals(4, dbInstance.readEvents(2, -1, 1, 50, batch));
+        assertEquals(1, batch.size());
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getQuarantinedEventCount());
+    }
+
     @Test
     public void testGetEventCount() {
         assertEquals(1, addEvent("test_get_event_count_1"));
@@ -178,6 +270,38 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(0, dbInstance.getEventCount());
     }
 
+    @Test
+    public void testEventCompression() {
+        try {
+            assertEquals(1, addEvent("test_compression_text"));
+            dbInstance.setEventCompression(true);
+            assertTrue(dbInstance.isEventCompression());
+            JSONObject props = new JSONObject().put("library",
+                    new JSONObject().put("name", Constants.LIBRARY));
+            assertEquals(2, addEvent("test_compression_blob", props));
+            List<Pair<String, Integer>> batch = new ArrayList<Pair<String, Integer>>();
+            batch.add(new Pair<String, Integer>("{\"event_type\":\"test_compression_batch\"}", 0));
+            assertEquals(3, dbInstance.addEvents(batch));
+
+            // rows written either way stay readable after the setting changes
+            dbInstance.setEventCompression(false);
+            assertEquals(4, addEvent("test_compression_text_again"));
+
+            JSONArray events = dbInstance.getEvents(-1, -1).second;
+            assertEquals(4, events.length());
+            assertEquals("test_compression_text", events.getJSONObject(0).getString("event_type"));
+            assertEquals("test_compression_blob", events.getJSONObject(1).getString("event_type"));
+            assertEquals(Constants.LIBRARY, events.getJSONObject(1)
+                    .getJSONObject("library").getString("name"));
+            assertEquals(2, events.getJSONObject(1).getLong("event_id"));
+            assertEquals("test_compression_batch", events.getJSONObject(2).getString("event_type"));
+            assertEquals("test_compression_text_again",
+                    events.getJSONObject(3).getString("event_type"));
+        } catch (JSONException e) {
+            fail(e.toString());
+        }
+    }
+
     @Test
     public void testGetNthEventId() {
         assertEquals(1, addEvent("test_get_nth_event_id_1"));
@@ -202,5 +326,132 @@ public class DatabaseHelperTest extends BaseTest {
         dbInstance.removeEvents(10);
         assertEquals(-1, dbInstance.getNthEventId(1));
     }
-}
 
+    @Test
+    public void testPersistentConnection() {
+        assertEquals(1, addEvent("test_persistent_connection_1"));
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(2, addEvent("test_persistent_connection_2"));
+        assertEquals(2, dbInstance.getEventCount());
+
+        // connection stays open across calls
+        assertTrue(db.isOpen());
+        assertSame(db, dbInstance.getWritableDatabase());
+
+        // closing on memory trim reopens lazily on the next call
+        dbInstance.close();
+        assertFalse(db.isOpen());
+        assertEquals(3, addEvent("test_persistent_connection_3"));
+        assertEquals(3, dbInstance.getEventCount());
+
+        // legacy mode closes the database after every call
+        dbInstance.setPersistentConnection(false);
+        db = dbInstance.getWritableDatabase();
+        assertEquals(4, addEvent("test_persistent_connection_4"));
+        assertFalse(db.isOpen());
+    }
+
+    @Test
+    public void testNonPersistentConnectionWithCapacity() {
+        // loading the event id index must not close the connection an insert is using
+        dbInstance.setPersistentConnection(false);
+        dbInstance.setEventCapacity(10, AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST);
+        assertEquals(1, addEvent("test_non_persistent_capacity_1"));
+        assertEquals(1, dbInstance.getEventCount());
+
+        // and again inside the batch transaction, with the index not loaded yet
+        DatabaseHelper.instance = null;
+        dbInstance = DatabaseHelper.getDatabaseHelper(context);
+        dbInstance.setPersistentConnection(false);
+        dbInstance.setEventCapacity(10, AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST);
+        List<Pair<String, Integer>> events = new ArrayList<Pair<String, Integer>>();
+        for (int i = 0; i < 3; i++) {
+            events.add(new Pair<String, Integer>(
+                    "{\"event_type\":\"test_non_persistent_capacity_batch\"}", 0));
+        }
+        assertEquals(4, dbInstance.addEvents(events));
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(4, dbInstance.getNthEventId(4));
+    }
+
+    @Test
+    public void testEventIdIndex() {
+        assertEquals(1, addEvent("test_event_id_index_1"));
+        assertEquals(1, dbInstance.getEventCount());
+
+        List<Pair<String, Integer>> events = new ArrayList<Pair<String, Integer>>();
+        for (int i = 0; i < 5; i++) {
+            events.add(new Pair<String, Integer>(
+                    "{\"event_type\":\"test_event_id_index_batch\"}", 0));
+        }
+        assertEquals(6, dbInstance.addEvents(events));
+        assertEquals(6, dbInstance.getEventCount());
+        assertEquals(6, dbInstance.getNthEventId(6));
+
+        // index stays in sync with rows written behind its back after a reload
+        dbInstance.getWritableDatabase().execSQL("DELETE FROM events WHERE id <= 2");
+        assertEquals(6, dbInstance.getEventCount());
+        DatabaseHelper.instance = null;
+        dbInstance = DatabaseHelper.getDatabaseHelper(context);
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(3, dbInstance.getNthEventId(1));
+    }
+
+    @Test
+    public void testOverflowDropOldest() {
+        dbInstance.setEventCapacity(5, AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST);
+        dbInstance.setEvictionBatchSize(2);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, addEvent("test_overflow_drop_oldest_" + i));
+        }
+        assertEquals(5, dbInstance.getEventCount());
+
+        // full queue evicts the 2 oldest events in one delete
+        assertEquals(6, addEvent("test_overflow_drop_oldest_6"));
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(3, dbInstance.getNthEventId(1));
+
+        assertEquals(7, addEvent("test_overflow_drop_oldest_7"));
+        assertEquals(5, dbInstance.getEventCount());
+        assertEquals(3, dbInstance.getNthEventId(1));
+    }
+
+    @Test
+    public void testOverflowDropNewest() {
+        dbInstance.setEventCapacity(3, AmplitudeClient.OVERFLOW_POLICY_DROP_NEWEST);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, addEvent("test_overflow_drop_newest_" + i));
+        }
+        assertEquals(-1, addEvent("test_overflow_drop_newest_4"));
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getNthEventId(1));
+        assertEquals(3, dbInstance.getNthEventId(3));
+    }
+
+    @Test
+    public void testOverflowDropLowestPriority() throws JSONException {
+        dbInstance.setEventCapacity(3, AmplitudeClient.OVERFLOW_POLICY_DROP_LOWEST_PRIORITY);
+        dbInstance.setEvictionBatchSize(1);
+        assertEquals(1, dbInstance.addEvent("{\"event_type\":\"high\"}", 10));
+        assertEquals(2, dbInstance.addEvent("{\"event_type\":\"low\"}", 0));
+        assertEquals(3, dbInstance.addEvent("{\"event_type\":\"high\"}", 10));
+
+        // low priority event is evicted first even though it is not the oldest
+        assertEquals(4, dbInstance.addEvent("{\"event_type\":\"medium\"}", 5));
+        JSONArray events = dbInstance.getEvents(-1, -1).second;
+        assertEquals(3, events.length());
+        assertEquals(1, events.getJSONObject(0).getLong("event_id"));
+        assertEquals(3, events.getJSONObject(1).getLong("event_id"));
+        assertEquals(4, events.getJSONObject(2).getLong("event_id"));
+
+        // nothing of lower or equal priority left to evict, drop the new event
+        assertEquals(-1, dbInstance.addEvent("{\"event_type\":\"low\"}", 0));
+        assertEquals(3, dbInstance.getEventCount());
+
+        // equal priority evicts the oldest of that priority
+        assertEquals(5, dbInstance.addEvent("{\"event_type\":\"medium\"}", 5));
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(5, dbInstance.getNthEventId(3));
+        assertEquals(3, dbInstance.getNthEventId(2));
+    }
+}
@@ -0,0 +1,64 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+import android.content.Context;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class DeviceContextTemplateTest {
+
+    private String carrier = "carrier";
+    private DeviceInfo deviceInfo;
+
+    @Before
+    public void setUp() {
+        Context context = ShadowApplication.getInstance().getApplicationContext();
+        deviceInfo = new DeviceInfo(context) {
+            @Override
+            public String getCarrier() {
+                return carrier;
+            }
+        };
+    }
+
+    private JSONObject parse(String fragment) throws Exception {
+        return new JSONObject("{" + fragment + "}");
+    }
+
+    @Test
+    public void testFragment() throws Exception {
+        DeviceContextTemplate template = new DeviceContextTemplate(deviceInfo);
+        JSONObject members = parse(template.getFragment());
+        assertEquals(DeviceInfo.OS_NAME, members.getString("os_name"));
+        assertEquals(deviceInfo.getModel(), members.getString("device_model"));
+        assertEquals("carrier", members.getString("carrier"));
+        assertEquals(deviceInfo.getCountry(), members.getString("country"));
+        assertEquals(Constants.PLATFORM, members.getString("platform"));
+        assertEquals(Constants.LIBRARY, members.getJSONObject("library").getString("name"));
+        assertEquals(Constants.VERSION, members.getJSONObject("library").getString("version"));
+    }
+
+    @Test
+    public void testRebuiltOnChange() throws Exception {
+        DeviceContextTemplate template = new DeviceContextTemplate(deviceInfo);
+        String fragment = template.getFragment();
+        assertSame(fragment, template.getFragment());
+
+        carrier = "other \"carrier\"";
+        assertEquals(carrier, parse(template.getFragment()).getString("carrier"));
+
+        carrier = null;
+        assertTrue(parse(template.getFragment()).isNull("carrier"));
+    }
+}
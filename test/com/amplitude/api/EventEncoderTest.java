@@ -0,0 +1,82 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventEncoderTest {
+
+    @Test
+    public void testEncode() throws JSONException {
+        String json = new EventEncoder().beginObject()
+                .name("string").value("a \"quoted\"\n\\ value\u0001")
+                .name("long").value(1234567890123L)
+                .name("double").value(1.5)
+                .name("boolean").value(true)
+                .name("null").nullValue()
+                .name("empty").beginObject().endObject()
+                .name("array").beginArray().value(1).value("two").beginArray().endArray().endArray()
+                .endObject().toJson();
+
+        JSONObject object = new JSONObject(json);
+        assertEquals("a \"quoted\"\n\\ value\u0001", object.getString("string"));
+        assertEquals(1234567890123L, object.getLong("long"));
+        assertEquals(1.5, object.getDouble("double"), 0);
+        assertTrue(object.getBoolean("boolean"));
+        assertTrue(object.isNull("null"));
+        assertEquals(0, object.getJSONObject("empty").length());
+        JSONArray array = object.getJSONArray("array");
+        assertEquals(3, array.length());
+        assertEquals("two", array.getString(1));
+    }
+
+    @Test
+    public void testOrgJsonInput() throws JSONException {
+        JSONObject properties = new JSONObject();
+        properties.put("int", 3);
+        properties.put("double", 2.5);
+        properties.put("string", "value");
+        properties.put("null", JSONObject.NULL);
+        properties.put("nested", new JSONObject().put("list", new JSONArray().put(1).put("x")));
+
+        String json = new EventEncoder().beginObject()
+                .name("before").value(1)
+                .name("properties").value(properties)
+                .members(new JSONObject().put("after", false))
+                .endObject().toJson();
+        JSONObject object = new JSONObject(json);
+        assertEquals(1, object.getInt("before"));
+        assertEquals(properties.toString(), object.getJSONObject("properties").toString());
+        assertEquals(false, object.getBoolean("after"));
+    }
+
+    @Test
+    public void testRawMembersAndReset() throws JSONException {
+        EventEncoder encoder = new EventEncoder();
+        String json = encoder.beginObject().rawMembers("\"a\":1,\"b\":2")
+                .name("c").value(3).endObject().toJson();
+        assertEquals("{\"a\":1,\"b\":2,\"c\":3}", json);
+
+        encoder.reset();
+        assertEquals("{\"d\":4}", encoder.beginObject().name("d").value(4).endObject().toJson());
+    }
+
+    @Test
+    public void testNotFinite() {
+        try {
+            new EventEncoder().beginArray().value(Double.NaN);
+            fail("NaN is not valid JSON");
+        } catch (JSONException e) {
+        }
+    }
+}
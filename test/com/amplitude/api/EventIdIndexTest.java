@@ -0,0 +1,76 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EventIdIndexTest {
+
+    @Test
+    public void testAddAndGetNth() {
+        EventIdIndex index = new EventIdIndex();
+        assertEquals(0, index.size());
+        assertEquals(-1, index.getNth(1));
+
+        for (long id = 1; id <= 5; id++) {
+            index.add(id);
+        }
+        assertEquals(5, index.size());
+        assertEquals(1, index.getNth(0));
+        assertEquals(1, index.getNth(1));
+        assertEquals(5, index.getNth(5));
+        assertEquals(-1, index.getNth(6));
+        assertEquals(1, index.first());
+        assertEquals(5, index.last());
+    }
+
+    @Test
+    public void testRemove() {
+        EventIdIndex index = new EventIdIndex();
+        for (long id = 1; id <= 10; id++) {
+            index.add(id);
+        }
+
+        assertEquals(3, index.removeUpTo(3));
+        assertEquals(7, index.size());
+        assertEquals(4, index.getNth(1));
+
+        assertTrue(index.remove(6));
+        assertFalse(index.remove(6));
+        assertEquals(6, index.size());
+        assertEquals(7, index.getNth(3));
+
+        assertEquals(6, index.removeUpTo(100));
+        assertEquals(0, index.size());
+        assertEquals(-1, index.first());
+    }
+
+    @Test
+    public void testGrowAndCompact() {
+        EventIdIndex index = new EventIdIndex();
+        long nextId = 1;
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 100; i++) {
+                index.add(nextId++);
+            }
+            index.removeUpTo(nextId - 21);
+            assertEquals(20, index.size());
+            assertEquals(nextId - 20, index.getNth(1));
+            assertEquals(nextId - 1, index.last());
+        }
+    }
+
+    @Test
+    public void testOutOfOrderAdd() {
+        EventIdIndex index = new EventIdIndex();
+        index.add(1);
+        index.add(5);
+        index.add(3);
+        index.add(3);
+        assertEquals(3, index.size());
+        assertEquals(3, index.getNth(2));
+        assertEquals(5, index.getNth(3));
+    }
+}
@@ -0,0 +1,80 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class EventPropertiesTest {
+
+    private JSONObject encode(EventProperties properties) throws JSONException {
+        return new JSONObject(new EventEncoder().beginObject().members(properties)
+                .endObject().toJson());
+    }
+
+    @Test
+    public void testBuilder() throws JSONException {
+        EventProperties.Builder builder = new EventProperties.Builder()
+                .putString("string", "value")
+                .putLong("long", Long.MAX_VALUE)
+                .putDouble("double", 0.25)
+                .putBoolean("boolean", true)
+                .putString("replaced", "first")
+                .putLong("replaced", 2)
+                .putDouble("nan", Double.NaN);
+        for (int i = 0; i < 20; i++) {
+            builder.putLong("key" + i, i);
+        }
+        EventProperties properties = builder.build();
+        assertEquals(25, properties.size());
+
+        JSONObject json = encode(properties);
+        assertEquals("value", json.getString("string"));
+        assertEquals(Long.MAX_VALUE, json.getLong("long"));
+        assertEquals(0.25, json.getDouble("double"), 0);
+        assertTrue(json.getBoolean("boolean"));
+        assertEquals(2, json.getLong("replaced"));
+        assertFalse(json.has("nan"));
+        assertEquals(19, json.getLong("key19"));
+
+        // the builder starts over and leaves the built properties alone
+        EventProperties next = builder.putString("string", "next").build();
+        assertEquals(1, next.size());
+        assertEquals(25, properties.size());
+        assertEquals("value", encode(properties).getString("string"));
+    }
+
+    @Test
+    public void testFromJSONObject() throws JSONException {
+        JSONArray list = new JSONArray().put(1).put("two");
+        JSONObject object = new JSONObject();
+        object.put("string", "value");
+        object.put("int", 3);
+        object.put("double", 1.5);
+        object.put("boolean", false);
+        object.put("null", JSONObject.NULL);
+        object.put("list", list);
+
+        EventProperties properties = EventProperties.fromJSONObject(object);
+        // copied, later changes don't show
+        object.put("later", 1);
+        assertEquals(6, properties.size());
+        JSONObject json = encode(properties);
+        assertEquals(6, json.length());
+        assertEquals("value", json.getString("string"));
+        assertEquals(3, json.getInt("int"));
+        assertEquals(1.5, json.getDouble("double"), 0);
+        assertFalse(json.getBoolean("boolean"));
+        assertTrue(json.isNull("null"));
+        assertEquals(list.toString(), json.getJSONArray("list").toString());
+    }
+}
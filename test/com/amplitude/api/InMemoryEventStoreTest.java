@@ -0,0 +1,90 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class InMemoryEventStoreTest {
+
+    private InMemoryEventStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryEventStore();
+    }
+
+    private long addEvent(String type) {
+        return store.addEvent("{\"event_type\":\"" + type + "\"}", 0);
+    }
+
+    @Test
+    public void testGetEvents() throws JSONException {
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, addEvent("test_get_events_" + i));
+        }
+        assertEquals(5, store.getEventCount());
+        assertEquals(5, (long) BaseTest.readEvents(store, -1, -1).first);
+
+        JSONArray events = BaseTest.readEvents(store, 3, -1).second;
+        assertEquals(3, events.length());
+        assertEquals(1, events.getJSONObject(0).getLong("event_id"));
+        assertEquals("test_get_events_1", events.getJSONObject(0).getString("event_type"));
+
+        events = BaseTest.readEvents(store, -1, 2).second;
+        assertEquals(2, events.length());
+        assertEquals(2, events.getJSONObject(1).getLong("event_id"));
+
+        store.removeEvent(1);
+        store.removeEvents(3);
+        events = BaseTest.readEvents(store, -1, -1).second;
+        assertEquals(2, events.length());
+        assertEquals(4, events.getJSONObject(0).getLong("event_id"));
+
+        // ids keep increasing after removal
+        assertEquals(6, addEvent("test_get_events_6"));
+    }
+
+    @Test
+    public void testKeyValue() {
+        assertNull(store.getValue("test_key"));
+        store.insertOrReplaceKeyValue("test_key", "test_value1");
+        assertEquals("test_value1", store.getValue("test_key"));
+        store.insertOrReplaceKeyValue("test_key", "test_value2");
+        assertEquals("test_value2", store.getValue("test_key"));
+    }
+
+    @Test
+    public void testOverflowPolicies() throws JSONException {
+        store.setEventCapacity(3, AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST);
+        store.setEvictionBatchSize(2);
+        for (int i = 1; i <= 4; i++) {
+            addEvent("test_overflow_" + i);
+        }
+        assertEquals(2, store.getEventCount());
+        assertEquals(3, BaseTest.readEvents(store, -1, 1).second.getJSONObject(0).getLong("event_id"));
+
+        store.setEventCapacity(2, AmplitudeClient.OVERFLOW_POLICY_DROP_NEWEST);
+        assertEquals(-1, addEvent("test_overflow_5"));
+        assertEquals(2, store.getEventCount());
+
+        store.setEventCapacity(2, AmplitudeClient.OVERFLOW_POLICY_DROP_LOWEST_PRIORITY);
+        store.setEvictionBatchSize(1);
+        store.removeEvents(10);
+        assertEquals(5, store.addEvent("{}", 10));
+        assertEquals(6, store.addEvent("{}", 0));
+        assertEquals(7, store.addEvent("{}", 5));
+        JSONArray events = BaseTest.readEvents(store, -1, -1).second;
+        assertEquals(5, events.getJSONObject(0).getLong("event_id"));
+        assertEquals(7, events.getJSONObject(1).getLong("event_id"));
+        assertEquals(-1, store.addEvent("{}", 0));
+    }
+}
@@ -0,0 +1,151 @@
+package com.amplitude.api;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.amplitude.security.MD5;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import okio.Buffer;
+import okio.GzipSource;
+import okio.Okio;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Stand-in for the ingestion endpoint. Decodes upload requests the way the server does,
+ * gunzipping them if needed, checks the checksum and records the events it accepts.
+ * Also keeps the user properties the server would have, from the user_properties merged
+ * in by each event and the $clearAll and $set operations of $identify events.
+ * Install with MockWebServer.setDispatcher.
+ */
+public class IngestionDispatcher extends Dispatcher {
+
+    private final String apiKey;
+    private final List<JSONObject> events = new ArrayList<JSONObject>();
+    private final List<String> contentEncodings = new ArrayList<String>();
+    private JSONObject userProperties = new JSONObject();
+    private long bytesReceived = 0;
+    private long bytesDecoded = 0;
+
+    public IngestionDispatcher(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+        try {
+            Buffer body = request.getBody();
+            bytesReceived += body.size();
+            String encoding = request.getHeader("Content-Encoding");
+            contentEncodings.add(encoding);
+            String form = "gzip".equals(encoding)
+                    ? Okio.buffer(new GzipSource(body)).readUtf8() : body.readUtf8();
+            bytesDecoded += form.length();
+
+            Map<String, String> fields = parseForm(form);
+            if (!apiKey.equals(fields.get("client"))) {
+                return new MockResponse().setBody("invalid_api_key");
+            }
+            String preimage = fields.get("v") + fields.get("client") + fields.get("e")
+                    + fields.get("upload_time");
+            if (!md5(preimage).equals(fields.get("checksum"))) {
+                return new MockResponse().setBody("bad_checksum");
+            }
+
+            JSONArray batch = new JSONArray(fields.get("e"));
+            for (int i = 0; i < batch.length(); i++) {
+                JSONObject event = batch.getJSONObject(i);
+                events.add(event);
+                applyUserProperties(event);
+            }
+            return new MockResponse().setBody("success");
+        } catch (IOException e) {
+            return new MockResponse().setResponseCode(400).setBody(e.toString());
+        } catch (JSONException e) {
+            return new MockResponse().setResponseCode(400).setBody(e.toString());
+        }
+    }
+
+    public synchronized List<JSONObject> getEvents() {
+        return new ArrayList<JSONObject>(events);
+    }
+
+    public synchronized List<String> getContentEncodings() {
+        return new ArrayList<String>(contentEncodings);
+    }
+
+    /**
+     * @return the user properties as reconstructed from the events received
+     */
+    public synchronized JSONObject getUserProperties() {
+        return userProperties;
+    }
+
+    /**
+     * @return the request body bytes received over the wire
+     */
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * @return the request body bytes after removing any content encoding
+     */
+    public synchronized long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    private void applyUserProperties(JSONObject event) throws JSONException {
+        JSONObject properties = event.optJSONObject("user_properties");
+        if (properties == null) {
+            return;
+        }
+        if (AmplitudeClient.IDENTIFY_EVENT.equals(event.getString("event_type"))) {
+            if (properties.has("$clearAll")) {
+                userProperties = new JSONObject();
+            }
+            properties = properties.optJSONObject("$set");
+            if (properties == null) {
+                return;
+            }
+        }
+        Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            userProperties.put(key, properties.get(key));
+        }
+    }
+
+    private static Map<String, String> parseForm(String form)
+            throws UnsupportedEncodingException {
+        Map<String, String> fields = new HashMap<String, String>();
+        for (String field : form.split("&")) {
+            int separator = field.indexOf('=');
+            if (separator > 0) {
+                fields.put(URLDecoder.decode(field.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(field.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return fields;
+    }
+
+    private static String md5(String string) throws UnsupportedEncodingException {
+        byte[] digest = new MD5().digest(string.getBytes("UTF-8"));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
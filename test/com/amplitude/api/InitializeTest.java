@@ -10,6 +10,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 
 import android.content.Context;
@@ -34,6 +35,8 @@ public class InitializeTest extends BaseTest {
         String userId = "user_id";
 
         Amplitude.initialize(context, "1cc2c1978ebab0f6451112a8f5df4f4e", userId);
+        // the user id is stored in the background
+        Shadows.shadowOf(amplitude.logThread.getLooper()).runToEndOfTasks();
 
         // Test that the user id is set.
         String sharedPreferences = Constants.SHARED_PREFERENCES_NAME_PREFIX + "."
@@ -0,0 +1,72 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RetrySchedulerTest {
+
+    @Test
+    public void testExponentialBackoff() {
+        RetryScheduler scheduler = new RetryScheduler(1000, 60 * 1000, new Random(1));
+        assertTrue(scheduler.canAttempt(0));
+        assertEquals(0, scheduler.getNextAttemptMillis());
+
+        long cap = 1000;
+        for (int i = 1; i <= 10; i++) {
+            long delay = scheduler.onFailure(0);
+            // jittered within the upper half of the capped exponential delay
+            assertTrue(delay + " at " + i, delay > cap / 2 && delay <= cap);
+            assertEquals(delay, scheduler.getNextAttemptMillis());
+            cap = Math.min(60 * 1000, cap * 2);
+        }
+        assertEquals(10, scheduler.getFailures());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(scheduler.onFailure(0) <= 60 * 1000);
+        }
+    }
+
+    @Test
+    public void testCanAttempt() {
+        RetryScheduler scheduler = new RetryScheduler(1000, 60 * 1000, new Random(1));
+        long delay = scheduler.onFailure(5000);
+        assertFalse(scheduler.canAttempt(5000));
+        assertFalse(scheduler.canAttempt(5000 + delay - 1));
+        assertTrue(scheduler.canAttempt(5000 + delay));
+
+        scheduler.reset();
+        assertTrue(scheduler.canAttempt(5000));
+        assertEquals(0, scheduler.getFailures());
+        assertEquals(0, scheduler.getNextAttemptMillis());
+    }
+
+    @Test
+    public void testIsCounted() {
+        RetryScheduler scheduler = new RetryScheduler(1000, 60 * 1000, new Random(1));
+        // two uploads sent before any failure, the first failure counts
+        assertFalse(scheduler.isCounted(0));
+        scheduler.onFailure(0);
+        assertTrue(scheduler.isCounted(0));
+
+        // a retry sent during the backoff counts again
+        assertFalse(scheduler.isCounted(scheduler.getFailures()));
+        scheduler.onFailure(0);
+        assertEquals(2, scheduler.getFailures());
+    }
+
+    @Test
+    public void testJitter() {
+        RetryScheduler first = new RetryScheduler(1000, 60 * 1000, new Random(1));
+        RetryScheduler second = new RetryScheduler(1000, 60 * 1000, new Random(2));
+        for (int i = 0; i < 5; i++) {
+            first.onFailure(0);
+            second.onFailure(0);
+        }
+        assertFalse(first.getNextAttemptMillis() == second.getNextAttemptMillis());
+    }
+}
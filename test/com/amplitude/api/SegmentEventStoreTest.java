@@ -0,0 +1,208 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowApplication;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SegmentEventStoreTest {
+
+    // small segments so that a handful of events spans several files
+    private static final int SEGMENT_SIZE = 256;
+
+    private File directory;
+    private SegmentEventStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(ShadowApplication.getInstance().getApplicationContext()
+                .getFilesDir(), "segments");
+        store = new SegmentEventStore(directory, SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private long addEvent(String type) {
+        return store.addEvent("{\"event_type\":\"" + type + "\"}", 0);
+    }
+
+    private int countSegments() {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testGetEvents() throws JSONException {
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i, addEvent("test_get_events_" + i));
+        }
+        assertEquals(20, store.getEventCount());
+        assertTrue(countSegments() > 1);
+
+        JSONArray events = BaseTest.readEvents(store, -1, -1).second;
+        assertEquals(20, events.length());
+        assertEquals(1, events.getJSONObject(0).getLong("event_id"));
+        assertEquals("test_get_events_20", events.getJSONObject(19).getString("event_type"));
+
+        events = BaseTest.readEvents(store, 15, 10).second;
+        assertEquals(10, events.length());
+        assertEquals(10, (long) BaseTest.readEvents(store, 15, 10).first);
+
+        events = BaseTest.readEvents(store, 5, -1).second;
+        assertEquals(5, events.length());
+    }
+
+    @Test
+    public void testAcknowledgeDeletesSegments() throws JSONException {
+        for (int i = 1; i <= 20; i++) {
+            addEvent("test_acknowledge_" + i);
+        }
+        int segments = countSegments();
+
+        store.removeEvents(10);
+        assertEquals(10, store.getEventCount());
+        assertTrue(countSegments() < segments);
+        assertEquals(11, BaseTest.readEvents(store, -1, 1).second.getJSONObject(0).getLong("event_id"));
+
+        store.removeEvent(11);
+        assertEquals(9, store.getEventCount());
+        assertEquals(12, BaseTest.readEvents(store, -1, 1).second.getJSONObject(0).getLong("event_id"));
+
+        store.removeEvents(20);
+        assertEquals(0, store.getEventCount());
+        assertEquals(0, countSegments());
+        assertEquals(21, addEvent("test_acknowledge_21"));
+    }
+
+    @Test
+    public void testAcknowledgeSkipsEmptySegments() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            addEvent("test_empty_segment_" + i);
+        }
+        // an empty segment ahead of the others, as left by a write that never happened
+        store.close();
+        assertTrue(new File(directory, "0.seg").createNewFile());
+        assertEquals(5, store.getEventCount());
+
+        store.removeEvents(5);
+        assertEquals(0, store.getEventCount());
+        assertFalse(new File(directory, "0.seg").exists());
+        assertEquals(0, countSegments());
+    }
+
+    @Test
+    public void testSurvivesReopen() throws JSONException {
+        for (int i = 1; i <= 10; i++) {
+            addEvent("test_reopen_" + i);
+        }
+        store.removeEvents(3);
+        store.removeEvent(5);
+        store.insertOrReplaceKeyValue("test_key", "test_value");
+        // replaced through a temporary file
+        assertFalse(new File(directory, "store.properties.tmp").exists());
+
+        // a new instance sees exactly what the old one left behind
+        store = new SegmentEventStore(directory, SEGMENT_SIZE);
+        assertEquals(6, store.getEventCount());
+        assertEquals("test_value", store.getValue("test_key"));
+        JSONArray events = BaseTest.readEvents(store, -1, -1).second;
+        assertEquals(4, events.getJSONObject(0).getLong("event_id"));
+        assertEquals(6, events.getJSONObject(1).getLong("event_id"));
+        assertEquals(11, addEvent("test_reopen_11"));
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            addEvent("test_torn_" + i);
+        }
+        store.close();
+
+        // cut the last record short, as if the process died while the page was written out
+        int recordSize = 4 + 8 + 4 + "{\"event_type\":\"test_torn_1\"}".length();
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, "1.seg"), "rw");
+        try {
+            raf.setLength(2 * recordSize + recordSize / 2);
+        } finally {
+            raf.close();
+        }
+
+        store = new SegmentEventStore(directory, SEGMENT_SIZE);
+        assertEquals(2, store.getEventCount());
+        assertEquals(3, addEvent("test_torn_4"));
+        JSONArray events = BaseTest.readEvents(store, -1, -1).second;
+        assertEquals(3, events.length());
+        assertEquals("test_torn_2", events.getJSONObject(1).getString("event_type"));
+        assertEquals("test_torn_4", events.getJSONObject(2).getString("event_type"));
+
+        store = new SegmentEventStore(directory, SEGMENT_SIZE);
+        assertEquals(3, store.getEventCount());
+    }
+
+    @Test
+    public void testMinimumPriority() throws JSONException {
+        assertEquals(1, store.addEvent("{\"event_type\":\"test_min_priority\"}",
+                Integer.MIN_VALUE));
+        assertEquals(1, store.getEventCount());
+        assertEquals(1, BaseTest.readEvents(store, -1, -1).second.length());
+
+        // still there after the segment is scanned again
+        store.close();
+        assertEquals(1, store.getEventCount());
+        assertEquals("test_min_priority", BaseTest.readEvents(store, -1, -1).second
+                .getJSONObject(0).getString("event_type"));
+    }
+
+    @Test
+    public void testOversizedEvent() throws JSONException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 4 * SEGMENT_SIZE; i++) {
+            value.append('x');
+        }
+        assertEquals(1, addEvent(value.toString()));
+        assertEquals(2, addEvent("test_after_oversized"));
+        JSONArray events = BaseTest.readEvents(store, -1, -1).second;
+        assertEquals(value.toString(), events.getJSONObject(0).getString("event_type"));
+        assertEquals("test_after_oversized", events.getJSONObject(1).getString("event_type"));
+    }
+
+    @Test
+    public void testOverflowDropOldest() throws JSONException {
+        store.setEventCapacity(5, AmplitudeClient.OVERFLOW_POLICY_DROP_OLDEST);
+        store.setEvictionBatchSize(2);
+        for (int i = 1; i <= 6; i++) {
+            addEvent("test_overflow_" + i);
+        }
+        assertEquals(4, store.getEventCount());
+        assertEquals(3, BaseTest.readEvents(store, -1, 1).second.getJSONObject(0).getLong("event_id"));
+    }
+}
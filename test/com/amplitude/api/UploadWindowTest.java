@@ -0,0 +1,88 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class UploadWindowTest {
+
+    @Test
+    public void testInOrderAcknowledgement() {
+        UploadWindow window = new UploadWindow();
+        assertTrue(window.isEmpty());
+        assertEquals(-1, window.getNextAfterId());
+        assertEquals(-1, window.getGapEnd());
+
+        UploadWindow.Batch first = window.add(-1, 10, window.getFreeThread());
+        assertEquals(0, first.thread);
+        assertEquals(10, window.getNextAfterId());
+        UploadWindow.Batch second = window.add(10, 20, window.getFreeThread());
+        assertEquals(1, second.thread);
+        assertEquals(2, window.getPendingCount());
+
+        assertEquals(10, window.succeed(first));
+        assertEquals(0, window.getFreeThread());
+        assertEquals(20, window.succeed(second));
+        assertTrue(window.isEmpty());
+        assertEquals(-1, window.getNextAfterId());
+    }
+
+    @Test
+    public void testOutOfOrderAcknowledgement() {
+        UploadWindow window = new UploadWindow();
+        UploadWindow.Batch first = window.add(-1, 10, 0);
+        UploadWindow.Batch second = window.add(10, 20, 1);
+        UploadWindow.Batch third = window.add(20, 30, 2);
+
+        // later batches are held back until the first one succeeds
+        assertEquals(-1, window.succeed(third));
+        assertEquals(-1, window.succeed(second));
+        assertEquals(1, window.getPendingCount());
+        assertEquals(30, window.succeed(first));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchLeavesGap() {
+        UploadWindow window = new UploadWindow();
+        UploadWindow.Batch first = window.add(-1, 10, 0);
+        UploadWindow.Batch second = window.add(10, 20, 1);
+        assertEquals(-1, window.succeed(second));
+
+        assertSame(first, window.find(10));
+        window.fail(first);
+        assertNull(window.find(10));
+        assertFalse(window.isEmpty());
+
+        // the gap is sent again before anything new
+        assertEquals(-1, window.getNextAfterId());
+        assertEquals(10, window.getGapEnd());
+        UploadWindow.Batch retry = window.add(-1, 5, window.getFreeThread());
+        assertEquals(0, retry.thread);
+        assertEquals(5, window.getNextAfterId());
+        assertEquals(10, window.getGapEnd());
+        UploadWindow.Batch rest = window.add(5, 10, window.getFreeThread());
+        assertEquals(1, rest.thread);
+        assertEquals(20, window.getNextAfterId());
+        assertEquals(-1, window.getGapEnd());
+
+        assertEquals(-1, window.succeed(rest));
+        assertEquals(20, window.succeed(retry));
+        assertTrue(window.isEmpty());
+    }
+
+    @Test
+    public void testFailingLastBatchResets() {
+        UploadWindow window = new UploadWindow();
+        UploadWindow.Batch first = window.add(-1, 10, 0);
+        assertEquals(10, window.succeed(first));
+        UploadWindow.Batch second = window.add(window.getNextAfterId(), 20, 0);
+        window.fail(second);
+        assertTrue(window.isEmpty());
+        assertEquals(-1, window.getNextAfterId());
+    }
+}
@@ -0,0 +1,68 @@
+package com.amplitude.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class UserPropertiesTest {
+
+    @Test
+    public void testMerge() throws JSONException {
+        JSONObject properties = new JSONObject();
+        properties.put("name", "a \"quoted\" name");
+        properties.put("age", 30);
+        properties.put("tags", new JSONArray().put("x").put(2));
+        UserProperties first = UserProperties.merge(null, properties, false);
+        assertEquals(1, first.getVersion());
+        assertEquals(3, first.size());
+        assertEquals(properties.toString(), first.toString());
+
+        // later changes to the input don't reach the snapshot
+        properties.put("age", 31);
+        assertEquals(30, new JSONObject(first.toString()).getInt("age"));
+
+        // adding properties appends to the cached members
+        UserProperties second = UserProperties.merge(first,
+                new JSONObject().put("plan", "pro"), false);
+        assertEquals(2, second.getVersion());
+        assertEquals(first.getMembers() + ",\"plan\":\"pro\"", second.getMembers());
+
+        // replacing one keeps its position and leaves the older snapshot alone
+        UserProperties third = UserProperties.merge(second,
+                new JSONObject().put("age", 40), false);
+        assertEquals(3, third.getVersion());
+        JSONObject merged = new JSONObject(third.toString());
+        assertEquals(4, merged.length());
+        assertEquals(40, merged.getInt("age"));
+        assertEquals("pro", merged.getString("plan"));
+        assertEquals(30, new JSONObject(second.toString()).getInt("age"));
+
+        UserProperties unchanged = UserProperties.merge(third, new JSONObject(), false);
+        assertSame(third.getMembers(), unchanged.getMembers());
+    }
+
+    @Test
+    public void testReplace() throws JSONException {
+        UserProperties first = UserProperties.merge(null,
+                new JSONObject().put("a", 1).put("b", 2), false);
+        UserProperties replaced = UserProperties.merge(first,
+                new JSONObject().put("c", 3), true);
+        assertEquals(2, replaced.getVersion());
+        assertEquals("{\"c\":3}", replaced.toString());
+
+        UserProperties empty = UserProperties.merge(replaced, new JSONObject(), true);
+        assertEquals(0, empty.size());
+        assertEquals("{}", empty.toString());
+        assertEquals("{\"d\":4}",
+                UserProperties.merge(empty, new JSONObject().put("d", 4), false).toString());
+    }
+}